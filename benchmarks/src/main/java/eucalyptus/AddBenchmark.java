@@ -0,0 +1,65 @@
+package eucalyptus;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Growing a List, Dict or String to size items one add at a time, as a program building one
+// in a loop does
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddBenchmark {
+    @Param({ "100", "1000", "10000" })
+    int size;
+
+    private String[] keys;
+
+    @Setup
+    public void keys() {
+        keys = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = "key" + i;
+        }
+    }
+
+    @Benchmark
+    public Object list() {
+        Object list = PersistentList.EMPTY;
+        for (int i = 0; i < size; i++) {
+            list = Operations.add(list, Operations.box(i));
+        }
+        return list;
+    }
+
+    @Benchmark
+    public Object dict() {
+        Object dict = PersistentDict.copyOf(Map.of());
+        for (int i = 0; i < size; i++) {
+            dict = Operations.put(dict, keys[i], Operations.box(i));
+        }
+        return dict;
+    }
+
+    @Benchmark
+    public Object string() {
+        Object string = "";
+        for (int i = 0; i < size; i++) {
+            string = Operations.add(string, "abcdefghij");
+        }
+        return string.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package eucalyptus;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Variable lookups with depth scopes open, each binding a variable of its own
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+    @Param({ "1", "10", "100" })
+    int depth;
+
+    private Environment env;
+    private int global;
+    private int local;
+    private int shadowed;
+
+    @Setup
+    public void enterScopes() {
+        Environment.Names names = new Environment.Names();
+        env = new Environment(names, null);
+        env.setVariable("global", 1);
+        env.setVariable("shadowed", 1);
+        for (int i = 0; i < depth; i++) {
+            env.enterScope();
+            env.setVariable("local" + i, i);
+            env.setVariable("shadowed", i);
+        }
+        global = names.slot("global");
+        local = names.slot("local" + (depth - 1));
+        shadowed = names.slot("shadowed");
+    }
+
+    @Benchmark
+    public Object global() {
+        return env.getVariable(global);
+    }
+
+    @Benchmark
+    public Object local() {
+        return env.getVariable(local);
+    }
+
+    @Benchmark
+    public Object shadowed() {
+        return env.getVariable(shadowed);
+    }
+
+    // Entering a scope, binding in it and leaving it again, as every call does
+    @Benchmark
+    public Object scope() {
+        env.enterScope();
+        env.setVariable(local, "local", 0);
+        Object value = env.getVariable(shadowed);
+        env.exitScope();
+        return value;
+    }
+}
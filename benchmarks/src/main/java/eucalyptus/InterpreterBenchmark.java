@@ -0,0 +1,95 @@
+package eucalyptus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole programs on either engine, compiled once and run in a fresh Environment each time.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    private static final String FIB = "defFunction(fib, [n], [\n"
+            + "    if(lt(n, 2), return(n), return(add(fib(sub(n, 1)), fib(sub(n, 2)))))\n"
+            + "])\n"
+            + "fib(20)";
+    private static final String WHILE = "def(i, 0)\n"
+            + "while(lt(i, 10000), [inc(i, 1), def(total, add(i, mult(i, 2)))])";
+    // items is bound before the program runs
+    private static final String FOR_EACH = "forEach(item, items, [def(total, add(item, mult(item, 2)))])";
+
+    @Param({ "tree", "vm" })
+    String engine;
+
+    private Program fib;
+    private Program whileLoop;
+    private Program forEach;
+    private PersistentList items;
+
+    // A program ready to run on the engine being measured
+    private final class Program {
+        final Node[] nodes;
+        final BytecodeCompiler.Chunk chunk;
+        final Environment.Names names = new Environment.Names();
+
+        Program(String source) throws Exception {
+            List<FunctionCall> functions = new Parser(source).parse();
+            Node[] compiled = new Compiler(Interpreter.reservedFunctions(), names).compile(functions);
+            nodes = Interpreter.prepare(compiled, Optimizer.enabled ? new Optimizer() : null,
+                    Map.of("items", List.of()));
+            chunk = engine.equals("vm") ? BytecodeCompiler.compileProgram(nodes) : null;
+        }
+
+        Context run() {
+            Context context = new Context(new Environment(names, null));
+            context.env.setVariable("items", items);
+            if (chunk != null) {
+                new VirtualMachine(context).run(chunk);
+            } else {
+                Interpreter.run(nodes, context);
+            }
+            return context;
+        }
+    }
+
+    @Setup
+    public void compile() throws Exception {
+        Object[] numbers = new Object[10000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i;
+        }
+        items = PersistentList.of(numbers);
+        fib = new Program(FIB);
+        whileLoop = new Program(WHILE);
+        forEach = new Program(FOR_EACH);
+    }
+
+    @Benchmark
+    public Context fib() {
+        return fib.run();
+    }
+
+    @Benchmark
+    public Context whileLoop() {
+        return whileLoop.run();
+    }
+
+    @Benchmark
+    public Context forEach() {
+        return forEach.run();
+    }
+}
@@ -0,0 +1,51 @@
+package eucalyptus;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eucalyptus.bench.LexerBenchmark;
+
+// Lexing and parsing the generated programs of LexerBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    int statements;
+
+    private char[] source;
+
+    @Setup
+    public void generate() {
+        source = LexerBenchmark.generate(statements).toCharArray();
+    }
+
+    @Benchmark
+    public Lexer tokenize() {
+        return new Lexer(source).tokenize();
+    }
+
+    @Benchmark
+    public List<FunctionCall> parse() throws Exception {
+        return new Parser(source).parse();
+    }
+
+    @Benchmark
+    public List<FunctionCall> parseParallel() throws Exception {
+        return new Parser(source).parseParallel();
+    }
+}
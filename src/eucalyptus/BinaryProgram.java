@@ -0,0 +1,304 @@
+package eucalyptus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact, versioned binary encoding of a parsed program (.eucb files)
+//
+// Layout: magic "EUCB", version byte, SHA-256 of the source, string table,
+// statement count, then the statements as tagged nodes in prefix order.
+// All counts and indices are unsigned LEB128 varints.
+public class BinaryProgram {
+    public static final String EXTENSION = ".eucb";
+
+    private static final int MAGIC = 0x45554342;
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private static final byte TAG_CALL = 1;
+    private static final byte TAG_VARIABLE = 2;
+    private static final byte TAG_NULL = 3;
+    private static final byte TAG_TRUE = 4;
+    private static final byte TAG_FALSE = 5;
+    private static final byte TAG_INTEGER = 6;
+    private static final byte TAG_DOUBLE = 7;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_DICT = 10;
+    private static final byte TAG_NONE = 11;
+
+    public static Path cachePath(Path source) {
+        String name = source.getFileName().toString();
+        if (name.endsWith(".euc")) {
+            name = name.substring(0, name.length() - ".euc".length());
+        }
+        return source.resolveSibling(name + EXTENSION);
+    }
+
+    // Parse the source file and write its binary form next to it
+    public static Path compile(Path source) throws Exception {
+        byte[] content = Files.readAllBytes(source);
+        List<FunctionCall> program = new Parser(new String(content, StandardCharsets.UTF_8)).parse();
+        Path target = cachePath(source);
+        Files.write(target, encode(program, hash(content)));
+        return target;
+    }
+
+    // Returns the cached program for a source file, or null if there is no up-to-date cache
+    public static List<FunctionCall> load(Path source, byte[] content) {
+        Path cache = cachePath(source);
+        try {
+            if (!Files.exists(cache)
+                    || Files.getLastModifiedTime(cache).compareTo(Files.getLastModifiedTime(source)) < 0) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return decode(buffer, hash(content));
+            }
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            // an unreadable or corrupt cache is treated as missing, including one nesting
+            // lists deeper than the stack allows
+            return null;
+        }
+    }
+
+    public static byte[] encode(List<FunctionCall> program, byte[] sourceHash) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (FunctionCall function : program) {
+            collectStrings(function, strings);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.write(sourceHash == null ? new byte[HASH_LENGTH] : sourceHash);
+
+        writeVarint(out, strings.size());
+        for (String string : strings.keySet()) {
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, utf8.length);
+            out.write(utf8);
+        }
+
+        writeVarint(out, program.size());
+        for (FunctionCall function : program) {
+            writeNode(out, function, strings);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Returns null if the header does not match this version or the expected source hash,
+    // which is not checked if sourceHash is null
+    public static List<FunctionCall> decode(ByteBuffer buffer, byte[] sourceHash) {
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            return null;
+        }
+        byte[] hash = new byte[HASH_LENGTH];
+        buffer.get(hash);
+        if (sourceHash != null && !Arrays.equals(hash, sourceHash)) {
+            return null;
+        }
+
+        String[] strings = new String[readCount(buffer)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] utf8 = new byte[readCount(buffer)];
+            buffer.get(utf8);
+            strings[i] = new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        int count = readCount(buffer);
+        List<FunctionCall> program = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            program.add((FunctionCall) readNode(buffer, strings));
+        }
+        return program;
+    }
+
+    public static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectStrings(Object node, Map<String, Integer> strings) {
+        if (node instanceof FunctionCall) {
+            FunctionCall function = (FunctionCall) node;
+            strings.putIfAbsent(function.getName(), strings.size());
+            for (Object argument : function.getArguments()) {
+                collectStrings(argument, strings);
+            }
+        } else if (node instanceof Variable) {
+            strings.putIfAbsent(((Variable) node).getName(), strings.size());
+        } else if (node instanceof Literal) {
+            Object value = ((Literal) node).getValue();
+            if (value instanceof String) {
+                strings.putIfAbsent((String) value, strings.size());
+            } else if (value instanceof List) {
+                for (Object item : (List<Object>) value) {
+                    collectStrings(item, strings);
+                }
+            } else if (value instanceof Map) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                    strings.putIfAbsent(entry.getKey(), strings.size());
+                    collectStrings(entry.getValue(), strings);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeNode(DataOutputStream out, Object node, Map<String, Integer> strings)
+            throws IOException {
+        if (node == null) {
+            out.writeByte(TAG_NONE);
+        } else if (node instanceof FunctionCall) {
+            FunctionCall function = (FunctionCall) node;
+            out.writeByte(TAG_CALL);
+            writeVarint(out, strings.get(function.getName()));
+            writeVarint(out, function.getArguments().size());
+            for (Object argument : function.getArguments()) {
+                writeNode(out, argument, strings);
+            }
+        } else if (node instanceof Variable) {
+            out.writeByte(TAG_VARIABLE);
+            writeVarint(out, strings.get(((Variable) node).getName()));
+        } else if (node instanceof Literal) {
+            Object value = ((Literal) node).getValue();
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer) {
+                out.writeByte(TAG_INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Double) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                out.writeByte(TAG_STRING);
+                writeVarint(out, strings.get(value));
+            } else if (value instanceof List) {
+                List<Object> list = (List<Object>) value;
+                out.writeByte(TAG_LIST);
+                writeVarint(out, list.size());
+                for (Object item : list) {
+                    writeNode(out, item, strings);
+                }
+            } else if (value instanceof Map) {
+                Map<String, Object> dict = (Map<String, Object>) value;
+                out.writeByte(TAG_DICT);
+                writeVarint(out, dict.size());
+                for (Map.Entry<String, Object> entry : dict.entrySet()) {
+                    writeVarint(out, strings.get(entry.getKey()));
+                    writeNode(out, entry.getValue(), strings);
+                }
+            } else {
+                throw new IllegalArgumentException("Cannot encode literal " + value);
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot encode node " + node);
+        }
+    }
+
+    private static Object readNode(ByteBuffer buffer, String[] strings) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_CALL: {
+                String name = strings[readVarint(buffer)];
+                int count = readCount(buffer);
+                List<Object> arguments = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    arguments.add(readNode(buffer, strings));
+                }
+                return new FunctionCall(name, arguments);
+            }
+            case TAG_VARIABLE:
+                return new Variable(strings[readVarint(buffer)]);
+            case TAG_NULL:
+                return new Literal(null);
+            case TAG_TRUE:
+                return new Literal(true);
+            case TAG_FALSE:
+                return new Literal(false);
+            case TAG_INTEGER:
+                return new Literal(buffer.getInt());
+            case TAG_DOUBLE:
+                return new Literal(buffer.getDouble());
+            case TAG_STRING:
+                return new Literal(strings[readVarint(buffer)]);
+            case TAG_LIST: {
+                int count = readCount(buffer);
+                List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readNode(buffer, strings));
+                }
+                return new Literal(list);
+            }
+            case TAG_DICT: {
+                int count = readCount(buffer);
+                Map<String, Object> dict = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = strings[readVarint(buffer)];
+                    dict.put(key, readNode(buffer, strings));
+                }
+                return new Literal(dict);
+            }
+            case TAG_NONE:
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown node tag " + tag);
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // A count or length to allocate for. Every item takes at least a byte, so one larger than
+    // what is left in buffer can only come from a corrupt file.
+    private static int readCount(ByteBuffer buffer) {
+        int count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException(
+                    "Count " + count + " exceeds the remaining " + buffer.remaining() + " bytes");
+        }
+        return count;
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,501 @@
+package eucalyptus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles the validated Node tree into register-based bytecode for VirtualMachine.
+//
+// Every instruction is an opcode followed by int operands. Operands are register numbers,
+// indices into the chunk's constant pool (names, values, messages, function templates)
+// or absolute jump targets.
+//
+// Registers only hold temporaries. Variables, parameters and locals included, stay in the
+// Environment and are reached through LOAD, DEF, INC and BIND: scoping is dynamic, so every
+// function called while a local is bound may read or inc it by name, and a name a body reads
+// before defining it is the caller's binding. The Environment also logs each change for the
+// debug log.
+class BytecodeCompiler {
+    // a = register, k = constant index, t = jump target
+    static final int CONST = 0; // a k
+    static final int LOAD = 1; // a k(name)
+    static final int ADD = 2; // a a a
+    static final int ADD_CONST = 3; // a a k
+    static final int SUB = 4; // a a a
+    static final int SUB_CONST = 5; // a a k
+    static final int MULT = 6; // a a a
+    static final int LT = 7; // a a a
+    static final int EQ = 8; // a a a
+    static final int JUMP_UNLESS_LT = 9; // a a t
+    static final int JUMP = 10; // t
+    static final int JUMP_IF_FALSY = 11; // a t
+    static final int JUMP_UNLESS_TRUE = 12; // a t
+    static final int JUMP_IF_DICT_KEY = 13; // a a t
+    static final int PUT = 14; // a a a a
+    static final int LIST_NEW = 15; // a
+    static final int LIST_ADD = 16; // a a
+    static final int LEN = 17; // a a
+    static final int GET_BEGIN = 18; // a k(name)
+    static final int GET = 19; // a a a k(name)
+    static final int PRINT = 20; // a
+    static final int CHECK_CONSTANT = 21; // k(name)
+    static final int DEF = 22; // k(name) a
+    static final int DEF_FUNCTION = 23; // k(template)
+    static final int INC = 24; // k(name) a a
+    static final int ENTER_SCOPE = 25;
+    static final int EXIT_SCOPE = 26;
+    static final int LOAD_LIST = 27; // a k(name)
+    static final int ITERATE = 28; // a a
+    static final int NEXT = 29; // a a t
+    static final int FAIL = 30; // k(message)
+    static final int CALL_BEGIN = 31; // a k(call)
+    static final int BIND = 32; // a index a
+    static final int CALL = 33; // a a k(name)
+    static final int RETURN_IF_NOT_NULL = 34; // a
+    static final int RETURN = 35; // a
+    static final int HALT = 36;
+    static final int JUMP_IF_NOT_NULL = 37; // a t
+    static final int LINE = 38; // line
+    static final int EXECUTE = 39; // a k(node)
+    static final int LIST_END = 40; // a
+
+    // Compiled code for the top-level program or one function body
+    static final class Chunk {
+        final int[] code;
+        final Object[] constants;
+        final int registerCount;
+        // Environment slot of each constant that names a variable, -1 for other constants
+        final int[] slots;
+        // offsets where each top-level statement begins, used for error line numbers
+        final int[] statementStarts;
+
+        Chunk(int[] code, Object[] constants, int registerCount, int[] slots, int[] statementStarts) {
+            this.code = code;
+            this.constants = constants;
+            this.registerCount = registerCount;
+            this.slots = slots;
+            this.statementStarts = statementStarts;
+        }
+
+        int lineAt(int pc) {
+            int line = Arrays.binarySearch(statementStarts, pc);
+            return line >= 0 ? line + 1 : -line - 1;
+        }
+    }
+
+    // What DEF_FUNCTION needs to create a Function value
+    static final class Template {
+        final Node.DefFunction definition;
+        final Chunk chunk;
+
+        Template(Node.DefFunction definition, Chunk chunk) {
+            this.definition = definition;
+            this.chunk = chunk;
+        }
+    }
+
+    private static final Object NULL_CONSTANT = new Object();
+
+    private int[] code = new int[64];
+    private int size;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+    // slot of each constant naming a variable, by its index
+    private final Map<Integer, Integer> nameSlots = new HashMap<>();
+    private int nextRegister;
+    private int registerCount;
+
+    static Chunk compileProgram(Node[] program) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        int[] statementStarts = new int[program.length];
+        int discard = compiler.allocate();
+        for (int i = 0; i < program.length; i++) {
+            statementStarts[i] = compiler.size;
+            compiler.emit(LINE, i + 1);
+            compiler.compile(program[i], discard);
+        }
+        compiler.emit(HALT);
+        return compiler.finish(statementStarts);
+    }
+
+    static Chunk compileFunction(Node[] body) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        int result = compiler.allocate();
+        compiler.compileStatements(body, result);
+        compiler.emit(CONST, result, compiler.constant(null));
+        compiler.emit(RETURN, result);
+        return compiler.finish(new int[0]);
+    }
+
+    private Chunk finish(int[] statementStarts) {
+        int[] slots = new int[constants.size()];
+        Arrays.fill(slots, -1);
+        for (Map.Entry<Integer, Integer> name : nameSlots.entrySet()) {
+            slots[name.getKey()] = name.getValue();
+        }
+        return new Chunk(Arrays.copyOf(code, size), constants.toArray(), registerCount, slots, statementStarts);
+    }
+
+    // Statements of a body: the first non-null value returns from the function
+    private void compileStatements(Node[] statements, int result) {
+        for (Node statement : statements) {
+            if (alwaysNull(statement)) {
+                compile(statement, -1);
+            } else {
+                compile(statement, result);
+                emit(RETURN_IF_NOT_NULL, result);
+            }
+        }
+    }
+
+    // Compile node so its value ends up in register target, or is dropped if target is -1
+    private void compile(Node node, int target) {
+        int mark = nextRegister;
+        if (node instanceof Node.Constant) {
+            if (target >= 0) {
+                emit(CONST, target, constant(((Node.Constant) node).value));
+            }
+        } else if (node instanceof Node.Failure) {
+            emit(FAIL, constant(((Node.Failure) node).message));
+        } else if (node instanceof Node.Read) {
+            emit(LOAD, valueRegister(target), name(((Node.Read) node).name, ((Node.Read) node).slot));
+        } else if (node instanceof Node.ListLiteral) {
+            int list = valueRegister(target);
+            emit(LIST_NEW, list);
+            int item = allocate();
+            for (Node itemNode : ((Node.ListLiteral) node).items) {
+                compile(itemNode, item);
+                emit(LIST_ADD, list, item);
+            }
+            emit(LIST_END, list);
+        } else if (node instanceof Node.Add) {
+            compileAdd(((Node.Add) node).arguments, valueRegister(target));
+        } else if (node instanceof Node.Sub) {
+            compileChain(((Node.Sub) node).arguments, SUB, SUB_CONST, valueRegister(target));
+        } else if (node instanceof Node.Mult) {
+            compileChain(((Node.Mult) node).arguments, MULT, -1, valueRegister(target));
+        } else if (node instanceof Node.LessThan) {
+            Node.LessThan lessThan = (Node.LessThan) node;
+            compileBinary(LT, lessThan.first, lessThan.second, valueRegister(target));
+        } else if (node instanceof Node.Eq) {
+            Node.Eq eq = (Node.Eq) node;
+            compileBinary(EQ, eq.first, eq.second, valueRegister(target));
+        } else if (node instanceof Node.And) {
+            compileLogical(((Node.And) node).arguments, true, valueRegister(target));
+        } else if (node instanceof Node.Or) {
+            compileLogical(((Node.Or) node).arguments, false, valueRegister(target));
+        } else if (node instanceof Node.Len) {
+            int value = valueRegister(target);
+            compile(((Node.Len) node).value, value);
+            emit(LEN, value, value);
+        } else if (node instanceof Node.Get) {
+            Node.Get get = (Node.Get) node;
+            int container = allocate();
+            int key = allocate();
+            emit(GET_BEGIN, container, name(get.variableName, get.slot));
+            compile(get.key, key);
+            emit(GET, valueRegister(target), container, key, constant(get.variableName));
+        } else if (node instanceof Node.Print) {
+            int value = allocate();
+            for (Node argument : ((Node.Print) node).arguments) {
+                compile(argument, value);
+                emit(PRINT, value);
+            }
+            setNull(target);
+        } else if (node instanceof Node.Def) {
+            Node.Def def = (Node.Def) node;
+            int name = name(def.name, def.slot);
+            if (def.constant) {
+                emit(CHECK_CONSTANT, name);
+            }
+            int value = allocate();
+            compile(def.value, value);
+            emit(DEF, name, value);
+            setNull(target);
+        } else if (node instanceof Node.DefFunction) {
+            Node.DefFunction definition = (Node.DefFunction) node;
+            emit(DEF_FUNCTION, constant(new Template(definition, compileFunction(definition.body))));
+            setNull(target);
+        } else if (node instanceof Node.Inc) {
+            Node.Inc inc = (Node.Inc) node;
+            int name = name(inc.variableName, inc.variable.slot);
+            int current = allocate();
+            int amount = allocate();
+            emit(LOAD, current, name);
+            compile(inc.amount, amount);
+            emit(INC, name, current, amount);
+            setNull(target);
+        } else if (node instanceof Node.If) {
+            compileIf((Node.If) node, target);
+        } else if (node instanceof Node.While) {
+            compileWhile((Node.While) node, target);
+        } else if (node instanceof Node.ForEach) {
+            compileForEach((Node.ForEach) node, target);
+        } else if (node instanceof Node.Parallel || node instanceof Node.Spawn || node instanceof Node.Await) {
+            // these run through the interpreter, which starts the threads
+            emit(EXECUTE, valueRegister(target), constant(Optimizer.withoutInvariants(node)));
+        } else if (node instanceof Node.Invariant) {
+            // evaluated every time; the VM keeps no per-loop cache
+            compile(((Node.Invariant) node).expression, target);
+        } else if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            int function = allocate();
+            int argument = allocate();
+            emit(CALL_BEGIN, function, constant(call));
+            for (int i = 0; i < call.arguments.length; i++) {
+                compile(call.arguments[i], argument);
+                emit(BIND, function, i, argument);
+            }
+            emit(CALL, valueRegister(target), function, constant(call.name));
+        } else {
+            throw new IllegalStateException("Cannot compile " + node.getClass().getSimpleName());
+        }
+        nextRegister = mark;
+    }
+
+    private void compileAdd(Node[] arguments, int result) {
+        compile(arguments[0], result);
+        int next = allocate();
+        int value = allocate();
+        if (arguments.length == 2 && arguments[1] instanceof Node.Constant) {
+            emit(ADD_CONST, result, result, constant(((Node.Constant) arguments[1]).value));
+            return;
+        }
+        // add(dict, key, value) decides at run time whether the next argument is a key
+        int[] pendingJumps = new int[arguments.length + 1];
+        for (int i = 1; i < arguments.length; i++) {
+            patchAll(pendingJumps, i);
+            compile(arguments[i], next);
+            if (i + 1 < arguments.length) {
+                int keyJump = emitJump(JUMP_IF_DICT_KEY, result, next);
+                emit(ADD, result, result, next);
+                int skip = emitJump(JUMP);
+                patch(keyJump);
+                compile(arguments[i + 1], value);
+                emit(PUT, result, result, next, value);
+                int afterPut = emitJump(JUMP);
+                patch(skip);
+                addPending(pendingJumps, i + 2, afterPut);
+            } else {
+                emit(ADD, result, result, next);
+            }
+        }
+        patchAll(pendingJumps, arguments.length);
+    }
+
+    // Jumps waiting for the code of argument index to be emitted, chained through the jump operands
+    private void addPending(int[] pendingJumps, int index, int jump) {
+        code[jump] = pendingJumps[index] - 1;
+        pendingJumps[index] = jump + 1;
+    }
+
+    private void patchAll(int[] pendingJumps, int index) {
+        int jump = pendingJumps[index] - 1;
+        while (jump >= 0) {
+            int next = code[jump];
+            code[jump] = size;
+            jump = next;
+        }
+        pendingJumps[index] = 0;
+    }
+
+    private void compileChain(Node[] arguments, int opcode, int constantOpcode, int result) {
+        compile(arguments[0], result);
+        int next = allocate();
+        for (int i = 1; i < arguments.length; i++) {
+            if (constantOpcode >= 0 && arguments[i] instanceof Node.Constant) {
+                emit(constantOpcode, result, result, constant(((Node.Constant) arguments[i]).value));
+            } else {
+                compile(arguments[i], next);
+                emit(opcode, result, result, next);
+            }
+        }
+    }
+
+    private void compileBinary(int opcode, Node first, Node second, int result) {
+        int firstValue = allocate();
+        int secondValue = allocate();
+        compile(first, firstValue);
+        compile(second, secondValue);
+        emit(opcode, result, firstValue, secondValue);
+    }
+
+    private void compileLogical(Node[] arguments, boolean isAnd, int result) {
+        int value = allocate();
+        int[] exits = new int[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            compile(arguments[i], value);
+            if (isAnd) {
+                exits[i] = emitJump(JUMP_IF_FALSY, value);
+            } else {
+                int next = emitJump(JUMP_IF_FALSY, value);
+                exits[i] = emitJump(JUMP);
+                patch(next);
+            }
+        }
+        emit(CONST, result, constant(isAnd));
+        int end = emitJump(JUMP);
+        for (int exit : exits) {
+            patch(exit);
+        }
+        emit(CONST, result, constant(!isAnd));
+        patch(end);
+    }
+
+    // Jump to the returned patch location unless condition holds; lt(a, b) is fused into the jump
+    private int compileCondition(Node condition, boolean strictBoolean) {
+        if (condition instanceof Node.LessThan) {
+            Node.LessThan lessThan = (Node.LessThan) condition;
+            int first = allocate();
+            int second = allocate();
+            compile(lessThan.first, first);
+            compile(lessThan.second, second);
+            return emitJump(JUMP_UNLESS_LT, first, second);
+        }
+        int value = allocate();
+        compile(condition, value);
+        return emitJump(strictBoolean ? JUMP_UNLESS_TRUE : JUMP_IF_FALSY, value);
+    }
+
+    private void compileIf(Node.If node, int target) {
+        int mark = nextRegister;
+        int otherwise = compileCondition(node.condition, false);
+        nextRegister = mark;
+        compile(node.then, target);
+        int end = emitJump(JUMP);
+        patch(otherwise);
+        if (node.otherwise != null) {
+            compile(node.otherwise, target);
+        } else {
+            setNull(target);
+        }
+        patch(end);
+    }
+
+    private void compileWhile(Node.While node, int target) {
+        int result = valueRegister(target);
+        emit(ENTER_SCOPE);
+        int loop = size;
+        int mark = nextRegister;
+        int exit = compileCondition(node.condition, true);
+        nextRegister = mark;
+        List<Integer> returns = new ArrayList<>();
+        compileLoopBody(node.statements, result, returns);
+        emit(JUMP, loop);
+        patch(exit);
+        emit(CONST, result, constant(null));
+        for (int jump : returns) {
+            patch(jump);
+        }
+        emit(EXIT_SCOPE);
+    }
+
+    private void compileForEach(Node.ForEach node, int target) {
+        int result = valueRegister(target);
+        int list = allocate();
+        if (node.list != null) {
+            compile(node.list, list);
+        } else {
+            emit(LOAD_LIST, list, name(node.listVariable, node.listSlot));
+        }
+        if (node.deferredError != null) {
+            emit(FAIL, constant(node.deferredError));
+            return;
+        }
+
+        int iterator = allocate();
+        int item = allocate();
+        int name = name(node.variableName, node.variableSlot);
+        emit(ENTER_SCOPE);
+        emit(ITERATE, iterator, list);
+        int loop = size;
+        int exit = emitJump(NEXT, item, iterator);
+        emit(DEF, name, item);
+        List<Integer> returns = new ArrayList<>();
+        compileLoopBody(node.statements, result, returns);
+        emit(JUMP, loop);
+        patch(exit);
+        emit(CONST, result, constant(null));
+        for (int jump : returns) {
+            patch(jump);
+        }
+        emit(EXIT_SCOPE);
+    }
+
+    // Loop bodies leave the loop with the first non-null statement value
+    private void compileLoopBody(Node[] statements, int result, List<Integer> returns) {
+        for (Node statement : statements) {
+            if (alwaysNull(statement)) {
+                compile(statement, -1);
+            } else {
+                compile(statement, result);
+                returns.add(emitJump(JUMP_IF_NOT_NULL, result));
+            }
+        }
+    }
+
+    private static boolean alwaysNull(Node node) {
+        return node instanceof Node.Def || node instanceof Node.DefFunction || node instanceof Node.Inc
+                || node instanceof Node.Print;
+    }
+
+    private void setNull(int target) {
+        if (target >= 0) {
+            emit(CONST, target, constant(null));
+        }
+    }
+
+    private int valueRegister(int target) {
+        return target >= 0 ? target : allocate();
+    }
+
+    private int allocate() {
+        int register = nextRegister++;
+        registerCount = Math.max(registerCount, nextRegister);
+        return register;
+    }
+
+    private int constant(Object value) {
+        Object key = value == null ? NULL_CONSTANT : value;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(key, index);
+        }
+        return index;
+    }
+
+    // Constant naming a variable; the VM reads and writes it through its slot
+    private int name(String name, int slot) {
+        int index = constant(name);
+        nameSlots.put(index, slot);
+        return index;
+    }
+
+    // Emit a jump with a placeholder target and return the operand offset to patch
+    private int emitJump(int opcode, int... operands) {
+        emit(opcode);
+        for (int operand : operands) {
+            emit(operand);
+        }
+        emit(-1);
+        return size - 1;
+    }
+
+    private void patch(int jump) {
+        code[jump] = size;
+    }
+
+    private void emit(int... words) {
+        if (size + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+        }
+        for (int word : words) {
+            code[size++] = word;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package eucalyptus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds the errors a program would run into before running it, with --check.
+//
+// Compiler already turns invalid built-in calls (argument counts, reserved and badly cased
+// names) into Failure nodes; this reports all of them at once instead of failing at the
+// first one that runs. It also checks calls of user Functions: a name that nothing in the
+// program defines is unknown, and a name defined only by defFunction must be called with
+// the number of parameters every definition of it declares. Such calls are verified, so
+// Node.Call skips those checks when it resolves them.
+final class Checker {
+    static boolean enabled = false;
+
+    // Every name the program binds with def, forEach or a parameter
+    private final Set<String> variables = new HashSet<>();
+    // Parameter counts of the names bound only by defFunction or to a Function before the
+    // program runs, -1 once two disagree
+    private final Map<String, Integer> arities = new HashMap<>();
+    private final Set<String> invalidParameters = new HashSet<>();
+    private final List<String> errors = new ArrayList<>();
+
+    // Bindings made before the program runs, as by a snapshot
+    void bind(Map<String, ?> globals) {
+        for (Map.Entry<String, ?> binding : globals.entrySet()) {
+            if (binding.getValue() instanceof Function) {
+                arities.put(binding.getKey(), ((Function) binding.getValue()).getArity());
+            } else {
+                variables.add(binding.getKey());
+            }
+        }
+    }
+
+    // The errors in program, one message per error, in the order they appear
+    List<String> check(Node[] program) {
+        for (Node statement : program) {
+            collect(statement);
+        }
+        arities.keySet().removeAll(variables);
+        for (int i = 0; i < program.length; i++) {
+            check(program[i], i + 1, null);
+        }
+        return errors;
+    }
+
+    // Mark the calls in a checked program that check found nothing wrong with
+    void verify(Node[] program) {
+        for (Node statement : program) {
+            verify(statement);
+        }
+    }
+
+    private void collect(Node node) {
+        if (node instanceof Node.Def) {
+            variables.add(((Node.Def) node).name);
+        } else if (node instanceof Node.ForEach) {
+            variables.add(((Node.ForEach) node).variableName);
+        } else if (node instanceof Node.DefFunction) {
+            Node.DefFunction definition = (Node.DefFunction) node;
+            int arity = definition.parameters.size();
+            arities.merge(definition.name, arity, (first, second) -> first.equals(second) ? first : -1);
+            if (definition.parameterNames == null) {
+                invalidParameters.add(definition.name);
+            } else {
+                for (String parameter : definition.parameterNames) {
+                    variables.add(parameter);
+                }
+            }
+        }
+        for (Node child : Optimizer.children(node)) {
+            collect(child);
+        }
+    }
+
+    private void check(Node node, int line, String function) {
+        if (node instanceof Node.Failure) {
+            report(line, function, ((Node.Failure) node).message);
+        } else if (node instanceof Node.ForEach && ((Node.ForEach) node).deferredError != null) {
+            report(line, function, ((Node.ForEach) node).deferredError);
+        } else if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            Integer arity = arities.get(call.name);
+            if (arity == null && !variables.contains(call.name)) {
+                report(line, function, "Function '" + call.name + "' is not defined");
+            } else if (arity != null && arity >= 0 && arity != call.arguments.length) {
+                report(line, function, "Function '" + call.name + "' expects " + arity + " parameters, but got "
+                        + call.arguments.length);
+            } else if (arity != null && invalidParameters.contains(call.name)) {
+                report(line, function, "Parameters of Function '" + call.name + "' must be Variables");
+            }
+        } else if (node instanceof Node.DefFunction) {
+            function = ((Node.DefFunction) node).name;
+        }
+        for (Node child : Optimizer.children(node)) {
+            check(child, line, function);
+        }
+    }
+
+    private void verify(Node node) {
+        if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            Integer arity = arities.get(call.name);
+            call.verified = arity != null && arity == call.arguments.length && !invalidParameters.contains(call.name);
+        }
+        for (Node child : Optimizer.children(node)) {
+            verify(child);
+        }
+    }
+
+    private void report(int line, String function, String message) {
+        if (function == null) {
+            errors.add("Error on line " + line + ": " + message);
+        } else {
+            errors.add("Error on line " + line + " in function '" + function + "': " + message);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package eucalyptus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for JitCompiler. Classes are written as version 49
+// so the verifier infers types itself and no StackMapTable has to be computed.
+class ClassFileWriter {
+    private static final int VERSION = 49;
+
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // opcodes used by JitCompiler
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int DUP = 0x59;
+    static final int SWAP = 0x5f;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPGE = 0xa2;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int IFNULL = 0xc6;
+    static final int IFNONNULL = 0xc7;
+
+    private final List<Object[]> pool = new ArrayList<>();
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private final List<byte[]> methods = new ArrayList<>();
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFileWriter(String name, String superName) {
+        pool.add(null); // entry 0 is unused
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(pool.size());
+            for (int i = 1; i < pool.size(); i++) {
+                Object[] entry = pool.get(i);
+                int tag = (int) entry[0];
+                out.writeByte(tag);
+                if (tag == 1) {
+                    out.writeUTF((String) entry[1]);
+                } else if (tag == 3) {
+                    out.writeInt((int) entry[1]);
+                } else {
+                    for (int j = 1; j < entry.length; j++) {
+                        out.writeShort((int) entry[j]);
+                    }
+                }
+            }
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Code method(int access, String name, String descriptor, int parameterSlots) {
+        return new Code(access, utf8(name), utf8(descriptor), parameterSlots);
+    }
+
+    private int entry(String key, Object... entry) {
+        Integer index = poolIndices.get(key);
+        if (index == null) {
+            index = pool.size();
+            pool.add(entry);
+            poolIndices.put(key, index);
+        }
+        return index;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, value);
+    }
+
+    int integer(int value) {
+        return entry("I" + value, 3, value);
+    }
+
+    int string(String value) {
+        return entry("S" + value, 8, utf8(value));
+    }
+
+    int classRef(String name) {
+        return entry("C" + name, 7, utf8(name));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + " " + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + " " + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    // A jump target inside one Code
+    static final class Label {
+        private int offset = -1;
+        private int stack = -1;
+        private int[] uses = new int[4];
+        private int useCount;
+    }
+
+    // Bytecode of one method. Tracks the operand stack depth to fill in max_stack.
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[256];
+        private int size;
+        private int stack;
+        private int maxStack;
+        private int maxLocals;
+
+        private Code(int access, int name, int descriptor, int parameterSlots) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = parameterSlots;
+        }
+
+        int newLocal() {
+            if (maxLocals == 255) {
+                throw new IllegalStateException("Too many locals");
+            }
+            return maxLocals++;
+        }
+
+        void op(int opcode, int stackChange) {
+            u1(opcode);
+            adjust(stackChange);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(integer(value));
+            }
+            adjust(1);
+        }
+
+        void ldcString(String value) {
+            u1(LDC_W);
+            u2(string(value));
+            adjust(1);
+        }
+
+        void load(int opcode, int local) {
+            u1(opcode);
+            u1(local);
+            adjust(1);
+        }
+
+        void store(int opcode, int local) {
+            u1(opcode);
+            u1(local);
+            adjust(-1);
+        }
+
+        void type(int opcode, String className) {
+            u1(opcode);
+            u2(classRef(className));
+            adjust(opcode == NEW ? 1 : 0);
+        }
+
+        void getField(String owner, String fieldName, String fieldDescriptor) {
+            u1(GETFIELD);
+            u2(fieldRef(owner, fieldName, fieldDescriptor));
+        }
+
+        void invoke(int opcode, String owner, String methodName, String methodDescriptor) {
+            u1(opcode);
+            u2(methodRef(owner, methodName, methodDescriptor));
+            adjust(stackEffect(methodDescriptor) - (opcode == INVOKESTATIC ? 0 : 1));
+        }
+
+        void jump(int opcode, Label label) {
+            int consumed = opcode == GOTO ? 0 : (opcode == IF_ICMPNE || opcode == IF_ICMPGE ? 2 : 1);
+            adjust(-consumed);
+            int at = size;
+            u1(opcode);
+            u2(0);
+            if (label.offset >= 0) {
+                patch(at, label.offset);
+            } else {
+                if (label.useCount == label.uses.length) {
+                    label.uses = Arrays.copyOf(label.uses, label.useCount * 2);
+                }
+                label.uses[label.useCount++] = at;
+            }
+            label.stack = stack;
+        }
+
+        // Bind label to the current offset; code after an unconditional jump resumes
+        // with the stack depth of the jumps that target it
+        void mark(Label label) {
+            label.offset = size;
+            for (int i = 0; i < label.useCount; i++) {
+                patch(label.uses[i], size);
+            }
+            if (label.stack >= 0) {
+                stack = label.stack;
+            }
+        }
+
+        void finish() {
+            if (size > Short.MAX_VALUE) {
+                throw new IllegalStateException("Method too large");
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + size);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(size);
+                out.write(code, 0, size);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+                methods.add(bytes.toByteArray());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void patch(int at, int target) {
+            int offset = target - at;
+            code[at + 1] = (byte) (offset >> 8);
+            code[at + 2] = (byte) offset;
+        }
+
+        private void adjust(int change) {
+            stack += change;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+    }
+
+    // Net stack change of invoking a method, not counting the receiver
+    private static int stackEffect(String descriptor) {
+        int change = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                change -= 2;
+                i++;
+                continue;
+            }
+            change--;
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+        }
+        char result = descriptor.charAt(i + 1);
+        return change + (result == 'V' ? 0 : (result == 'J' || result == 'D' ? 2 : 1));
+    }
+}
@@ -0,0 +1,366 @@
+package eucalyptus;
+
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Lowers parsed FunctionCalls into Nodes. Built-ins are bound and their arguments validated
+// here, once; invalid calls become Failure nodes so errors still surface when the call runs.
+class Compiler {
+    private Set<String> reservedFunctions;
+    // slots of the variable names, for the Environments the program runs in
+    private final Environment.Names names;
+
+    Compiler(Set<String> reservedFunctions, Environment.Names names) {
+        this.reservedFunctions = reservedFunctions;
+        this.names = names;
+    }
+
+    Node[] compile(List<FunctionCall> functions) {
+        Node[] nodes = new Node[functions.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compileFunction(functions.get(i));
+        }
+        return nodes;
+    }
+
+    private Node compileFunction(FunctionCall function) {
+        String name = function.getName();
+        List<Object> arguments = function.getArguments();
+        // alphabetized list of built-in functions
+        // each built-in function should also be listed in reserved_functions.txt
+        switch (name) {
+            case "add":
+                if (arguments.size() < 2) {
+                    return atLeast("add", 2, arguments);
+                }
+                return new Node.Add(compileAll(arguments));
+            case "and":
+                if (arguments.size() < 2) {
+                    return atLeast("and", 2, arguments);
+                }
+                return new Node.And(compileAll(arguments));
+            case "await":
+            case "awaitAll":
+                if (arguments.size() != 1) {
+                    return new Node.Failure("'" + name + "' function expects 1 argument, got " + arguments.size());
+                }
+                return new Node.Await(compileStatement(arguments.get(0)), name.equals("awaitAll"));
+            case "def":
+                return compileDef(arguments);
+            case "defFunction":
+                return compileDefFunction(arguments);
+            case "eq":
+                if (arguments.size() != 2) {
+                    return exactly("eq", 2, arguments);
+                }
+                return new Node.Eq(compileStatement(arguments.get(0)), compileStatement(arguments.get(1)));
+            case "forEach":
+                return compileForEach("forEach", arguments);
+            case "get":
+                if (arguments.size() != 2) {
+                    return new Node.Failure("'get' function expects 2 arguments, got " + arguments.size());
+                }
+                if (!(arguments.get(0) instanceof Variable)) {
+                    return new Node.Failure("First argument of 'get' function must be a Variable");
+                }
+                String container = ((Variable) arguments.get(0)).getName();
+                return new Node.Get(container, names.slot(container), compileStatement(arguments.get(1)));
+            case "if":
+                return compileIf(arguments);
+            case "inc":
+                if (arguments.size() != 2) {
+                    return exactly("inc", 2, arguments);
+                }
+                if (!(arguments.get(0) instanceof Variable)) {
+                    return new Node.Failure("First argument of 'inc' function must be a Variable");
+                }
+                String variable = ((Variable) arguments.get(0)).getName();
+                return new Node.Inc(variable, names.slot(variable), compileStatement(arguments.get(1)));
+            case "len":
+                if (arguments.size() != 1) {
+                    return new Node.Failure("'len' function expects 1 argument, got " + arguments.size());
+                }
+                return new Node.Len(compileStatement(arguments.get(0)));
+            case "lt":
+                if (arguments.size() != 2) {
+                    return exactly("lt", 2, arguments);
+                }
+                return new Node.LessThan(compileStatement(arguments.get(0)), compileStatement(arguments.get(1)));
+            case "mult":
+                if (arguments.size() < 2) {
+                    return atLeast("mult", 2, arguments);
+                }
+                return new Node.Mult(compileAll(arguments));
+            case "or":
+                if (arguments.size() < 2) {
+                    return atLeast("or", 2, arguments);
+                }
+                return new Node.Or(compileAll(arguments));
+            case "parallelForEach":
+            case "parallelMap": {
+                Node loop = compileForEach(name, arguments);
+                if (!(loop instanceof Node.ForEach)) {
+                    return loop;
+                }
+                return new Node.Parallel(name, name.equals("parallelMap"), (Node.ForEach) loop);
+            }
+            case "print":
+                if (arguments.isEmpty()) {
+                    return atLeast("print", 1, arguments);
+                }
+                return new Node.Print(compileAll(arguments));
+            case "return":
+                if (arguments.size() != 1) {
+                    return new Node.Failure("'return' function expects 1 argument, got " + arguments.size());
+                }
+                // return only passes its value through
+                return compileStatement(arguments.get(0));
+            case "spawn":
+                if (arguments.size() != 2) {
+                    return exactly("spawn", 2, arguments);
+                }
+                return new Node.Spawn(compileStatement(arguments.get(0)), compileStatement(arguments.get(1)));
+            case "sub":
+                if (arguments.size() < 2) {
+                    return atLeast("sub", 2, arguments);
+                }
+                return new Node.Sub(compileAll(arguments));
+            case "while":
+                if (arguments.size() != 2) {
+                    return exactly("while", 2, arguments);
+                }
+                Node condition = compileStatement(arguments.get(0));
+                String error = functionCallsError(arguments.get(1), "Second", "while");
+                if (error != null) {
+                    return new Node.Failure(error);
+                }
+                return new Node.While(condition, compileBody(arguments.get(1)));
+            default:
+                return new Node.Call(name, names.slot(name), compileAll(arguments));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node compileStatement(Object statement) {
+        if (statement instanceof FunctionCall) {
+            return compileFunction((FunctionCall) statement);
+        } else if (statement instanceof Literal) {
+            Literal literalStatement = (Literal) statement;
+            if (literalStatement.isList()) {
+                return new Node.ListLiteral(compileAll((List<Object>) literalStatement.getValue()));
+            }
+            return new Node.Constant(literalStatement.getValue());
+        } else if (statement instanceof Variable) {
+            String name = ((Variable) statement).getName();
+            return new Node.Read(name, names.slot(name));
+        }
+        return new Node.Failure("Unknown statement: " + statement);
+    }
+
+    private Node[] compileAll(List<Object> statements) {
+        Node[] nodes = new Node[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compileStatement(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private Node compileDef(List<Object> arguments) {
+        if (arguments.size() == 3) {
+            return compileDefFunction(arguments);
+        } else if (arguments.size() != 2) {
+            return new Node.Failure("'def' function expects 2 or 3 arguments, got " + arguments.size());
+        }
+        if (!(arguments.get(0) instanceof Variable)) {
+            return new Node.Failure("First argument of 'def' function must be a Variable");
+        }
+
+        String variableName = ((Variable) arguments.get(0)).getName();
+        if (reservedFunctions.contains(variableName)) {
+            return new Node.Failure("Cannot define Variable with reserved name '" + variableName + "'");
+        }
+        boolean constant = isScreamingSnakeCase(variableName);
+        if (!constant && !isSnakeCase(variableName)) {
+            return new Node.Failure(
+                    "Variable name must be in snake_case if mutable or SCREAMING_SNAKE_CASE if constant");
+        }
+
+        return new Node.Def(variableName, names.slot(variableName), constant, compileStatement(arguments.get(1)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node compileDefFunction(List<Object> arguments) {
+        if (arguments.size() != 3) {
+            return new Node.Failure("'defFunction' function expects 3 arguments, got " + arguments.size());
+        }
+        if (!(arguments.get(0) instanceof Variable)) {
+            return new Node.Failure("First argument of 'defFunction' function must be a Variable");
+        }
+
+        String functionName = ((Variable) arguments.get(0)).getName();
+        if (reservedFunctions.contains(functionName)) {
+            return new Node.Failure("Cannot define Function with reserved name '" + functionName + "'");
+        }
+        if (!isCamelCase(functionName)) {
+            return new Node.Failure("Function name must be in camelCase");
+        }
+
+        List<Variable> parameters;
+        if (arguments.get(1) instanceof Literal && ((Literal) arguments.get(1)).isList()) {
+            parameters = (List<Variable>) ((Literal) arguments.get(1)).getValue();
+        } else if (arguments.get(1) instanceof Variable) {
+            parameters = List.of((Variable) arguments.get(1));
+        } else {
+            return new Node.Failure(
+                    "Second argument of 'defFunction' function must be a Variable or List of Variables");
+        }
+
+        String error = functionCallsError(arguments.get(2), "Third", "defFunction");
+        if (error != null) {
+            return new Node.Failure(error);
+        }
+
+        String[] parameterNames = new String[parameters.size()];
+        int[] parameterSlots = new int[parameters.size()];
+        for (int i = 0; i < parameterNames.length; i++) {
+            Object parameter = parameters.get(i);
+            if (!(parameter instanceof Variable)) {
+                parameterNames = null;
+                parameterSlots = null;
+                break;
+            }
+            parameterNames[i] = ((Variable) parameter).getName();
+            parameterSlots[i] = names.slot(parameterNames[i]);
+        }
+
+        Node[] body = compileBody(arguments.get(2));
+        if (body.length > 0) {
+            body[body.length - 1] = markTailCalls(body[body.length - 1], body);
+        }
+        return new Node.DefFunction(functionName, names.slot(functionName), parameters,
+                extractFunctionCalls(arguments.get(2)), parameterNames, parameterSlots, body);
+    }
+
+    // The last statement's value is always the function's result, so calls there (or in
+    // either branch of an if there) are in tail position
+    static Node markTailCalls(Node node, Node[] body) {
+        if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            return new Node.Call(call.name, call.slot, call.arguments, body);
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            Node otherwise = ifNode.otherwise == null ? null : markTailCalls(ifNode.otherwise, body);
+            return new Node.If(ifNode.condition, markTailCalls(ifNode.then, body), otherwise);
+        }
+        return node;
+    }
+
+    // forEach and the parallel loops built on it, which check their arguments the same way
+    private Node compileForEach(String name, List<Object> arguments) {
+        if (arguments.size() != 3) {
+            return new Node.Failure("'" + name + "' function expects 3 arguments, got " + arguments.size());
+        }
+        if (!(arguments.get(0) instanceof Variable)) {
+            return new Node.Failure("First argument of '" + name + "' function must be a Variable");
+        }
+        String listError = Node.ForEach.listError(name);
+
+        Node list = null;
+        String listVariable = null;
+        if (arguments.get(1) instanceof Literal) {
+            Literal listLiteral = (Literal) arguments.get(1);
+            if (!listLiteral.isList()) {
+                return new Node.Failure(listError);
+            }
+            list = compileStatement(listLiteral);
+        } else if (arguments.get(1) instanceof Variable) {
+            listVariable = ((Variable) arguments.get(1)).getName();
+        } else {
+            return new Node.Failure(listError);
+        }
+
+        String variableName = ((Variable) arguments.get(0)).getName();
+        String error = functionCallsError(arguments.get(2), "Third", name);
+        if (error == null && reservedFunctions.contains(variableName)) {
+            error = "Cannot define Variable with reserved name '" + variableName + "'";
+        }
+        if (error == null && !isSnakeCase(variableName)) {
+            error = "Variable name must be in snake_case";
+        }
+
+        Node[] statements = error == null ? compileBody(arguments.get(2)) : new Node[0];
+        int listSlot = listVariable == null ? -1 : names.slot(listVariable);
+        return new Node.ForEach(variableName, names.slot(variableName), list, listVariable, listSlot, error,
+                statements);
+    }
+
+    private Node compileIf(List<Object> arguments) {
+        // if never checked its arity, so missing arguments fail the way List.get does
+        if (arguments.isEmpty()) {
+            return new Node.Failure("Index 0 out of bounds for length 0");
+        }
+        Node condition = compileStatement(arguments.get(0));
+        Node then = arguments.size() > 1 ? compileStatement(arguments.get(1))
+                : new Node.Failure("Index 1 out of bounds for length 1");
+        Node otherwise = arguments.size() == 3 ? compileStatement(arguments.get(2)) : null;
+        return new Node.If(condition, then, otherwise);
+    }
+
+    private Node[] compileBody(Object arg) {
+        List<FunctionCall> functionCalls = extractFunctionCalls(arg);
+        Node[] nodes = new Node[functionCalls.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            Object statement = functionCalls.get(i);
+            if (statement instanceof FunctionCall) {
+                nodes[i] = compileFunction((FunctionCall) statement);
+            } else {
+                nodes[i] = new Node.Failure("Expected a Function call, but got " + statement);
+            }
+        }
+        return nodes;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<FunctionCall> extractFunctionCalls(Object arg) {
+        if (arg instanceof Literal && ((Literal) arg).isList()) {
+            return (List<FunctionCall>) ((Literal) arg).getValue();
+        }
+        return List.of((FunctionCall) arg);
+    }
+
+    // Returns the error for a statement list argument that is neither a List nor a Function call
+    static String functionCallsError(Object arg, String argNumber, String functionName) {
+        if ((arg instanceof Literal && ((Literal) arg).isList()) || arg instanceof FunctionCall) {
+            return null;
+        }
+        return argNumber + " argument of '" + functionName + "' function must be a List of Function calls";
+    }
+
+    private static Node atLeast(String name, int count, List<Object> arguments) {
+        String plural = count == 1 ? " argument" : " arguments";
+        return new Node.Failure(
+                "'" + name + "' function expects at least " + count + plural + ", got " + arguments.size());
+    }
+
+    private static Node exactly(String name, int count, List<Object> arguments) {
+        return new Node.Failure(
+                "'" + name + "' function expects exactly " + count + " arguments, got " + arguments.size());
+    }
+
+    private static final Pattern CAMEL_CASE = Pattern.compile("^[a-z][a-z0-9]*([A-Z][a-z0-9]*)*$");
+    private static final Pattern SCREAMING_SNAKE_CASE = Pattern.compile("^[A-Z][A-Z0-9]*(_[A-Z][A-Z0-9]*)*$");
+    private static final Pattern SNAKE_CASE = Pattern.compile("^[a-z][a-z0-9]*(_[a-z][a-z0-9]*)*$");
+
+    static boolean isCamelCase(String input) {
+        return CAMEL_CASE.matcher(input).matches();
+    }
+
+    static boolean isScreamingSnakeCase(String input) {
+        return SCREAMING_SNAKE_CASE.matcher(input).matches();
+    }
+
+    static boolean isSnakeCase(String input) {
+        return SNAKE_CASE.matcher(input).matches();
+    }
+}
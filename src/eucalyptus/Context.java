@@ -0,0 +1,38 @@
+package eucalyptus;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Mutable state of a single program execution, threaded through Node.execute
+class Context {
+    final Environment env;
+    String currentFunction;
+    // top-level statement that is running, counting from 1
+    int line;
+    // in a Task, the Functions an error passed through on its way out, innermost first
+    List<String> trace;
+    // the user Functions running, null unless the program is profiled
+    Profiler.Stack stack;
+    // values of Node.Invariants for the loops that are running, null until computed
+    Object[] invariants = new Object[0];
+
+    Context(Environment env) {
+        this.env = env;
+        env.context = this;
+    }
+
+    // Clear the invariants of a loop that is starting, returning the values of the run of
+    // the same loop it interrupts, if any, for exitLoop to put back
+    Object[] enterLoop(int first, int count) {
+        if (first + count > invariants.length) {
+            invariants = Arrays.copyOf(invariants, Math.max(first + count, invariants.length * 2));
+        }
+        Object[] saved = Arrays.copyOfRange(invariants, first, first + count);
+        Arrays.fill(invariants, first, first + count, null);
+        return saved;
+    }
+
+    void exitLoop(int first, Object[] saved) {
+        System.arraycopy(saved, 0, invariants, first, saved.length);
+    }
+}
@@ -0,0 +1,321 @@
+package eucalyptus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Log of every variable an Environment creates or changes, written to ../src/Debugger.log.
+//
+// Recording an event only stores a few numbers in a ring buffer: the variable's slot, the
+// top-level line, the slot of the running function and a summary of the value (its type and
+// the number itself, or the size of a String, List or Dict). A background thread drains
+// the buffer into a binary file, and render turns that file back into text.
+//
+// Layout: magic "EUCL", version byte, level byte, sample interval, then tagged records.
+// Every slot is preceded by a name record the first time it appears.
+final class DebugLog {
+    enum Level { OFF, SAMPLED, FULL }
+
+    static Level level = Level.FULL;
+    // with Level.SAMPLED, one event in this many is recorded
+    static int sampleEvery = 100;
+    static final Path PATH = Paths.get("../src/Debugger.log");
+
+    private static final int MAGIC = 0x4555434C;
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_NAME = 1;
+    private static final byte RECORD_EVENT = 2;
+    private static final byte RECORD_DROPPED = 3;
+
+    static final int CREATED = 0;
+    static final int CHANGED = 1;
+
+    // value types; the payload is the value itself for numbers and booleans, the size for
+    // Strings, Lists and Dicts, and the slot of the name for Functions
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_INTEGER = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_BOOLEAN = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_LIST = 5;
+    private static final int TYPE_DICT = 6;
+    private static final int TYPE_FUNCTION = 7;
+    private static final int TYPE_OTHER = 8;
+
+    private static final int CAPACITY = 1 << 13;
+
+    // Event i of the ring is words[3i..3i+2]; it may be read once sequences[i] is one past
+    // the position it was written at. Producers claim positions from head, the drain thread
+    // alone advances tail.
+    private final long[] words = new long[CAPACITY * 3];
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private volatile boolean closed;
+    private final boolean sampled;
+    private int untilSample;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final DataOutputStream out;
+    private final Environment.Names names;
+    private final Thread drainer;
+    private final Map<Integer, Boolean> named = new HashMap<>();
+
+    private DebugLog(DataOutputStream out, Environment.Names names) {
+        this.out = out;
+        this.names = names;
+        this.sampled = level == Level.SAMPLED;
+        this.untilSample = sampleEvery;
+        drainer = new Thread(this::drain, "eucalyptus-debug-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    // A new log of the variables of names, replacing the file of the previous run, or null if
+    // logging is off
+    static DebugLog open(Environment.Names names) {
+        if (level == Level.OFF) {
+            return null;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(PATH), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(level.ordinal());
+            out.writeInt(sampleEvery);
+            return new DebugLog(out, names);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    void record(int kind, int slot, Context context, Object value) {
+        int type;
+        long payload = 0;
+        if (value == null) {
+            type = TYPE_NULL;
+        } else if (value instanceof Integer) {
+            type = TYPE_INTEGER;
+            payload = (Integer) value;
+        } else if (value instanceof Double) {
+            type = TYPE_DOUBLE;
+            payload = Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof Boolean) {
+            type = TYPE_BOOLEAN;
+            payload = (Boolean) value ? 1 : 0;
+        } else if (Operations.isString(value)) {
+            type = TYPE_STRING;
+            payload = ((CharSequence) value).length();
+        } else if (value instanceof List) {
+            type = TYPE_LIST;
+            payload = ((List<?>) value).size();
+        } else if (value instanceof Map) {
+            type = TYPE_DICT;
+            payload = ((Map<?, ?>) value).size();
+        } else if (value instanceof Function) {
+            type = TYPE_FUNCTION;
+            payload = names.slot(((Function) value).getName());
+        } else {
+            type = TYPE_OTHER;
+        }
+        record(kind, slot, context, type, payload);
+    }
+
+    void recordInt(int kind, int slot, Context context, int value) {
+        record(kind, slot, context, TYPE_INTEGER, value);
+    }
+
+    private void record(int kind, int slot, Context context, int type, long payload) {
+        if (sampled) {
+            if (--untilSample > 0) {
+                return;
+            }
+            untilSample = sampleEvery;
+        }
+        long position;
+        while (true) {
+            position = head.get();
+            if (position - tail >= CAPACITY) {
+                if (sampled || closed || !drainer.isAlive()) {
+                    // a sample is not worth waiting for, and nothing frees space once the
+                    // log was closed or the drain thread stopped on an error
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(drainer);
+                Thread.onSpinWait();
+            } else if (head.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+        int line = context == null ? 0 : context.line;
+        String function = context == null ? null : context.currentFunction;
+        int index = (int) position & (CAPACITY - 1);
+        words[index * 3] = (long) kind << 40 | (long) type << 32 | (slot & 0xFFFFFFFFL);
+        words[index * 3 + 1] = (long) line << 32 | (function == null ? 0xFFFFFFFFL : names.slot(function));
+        words[index * 3 + 2] = payload;
+        sequences.set(index, position + 1);
+    }
+
+    // Write everything recorded so far and close the file
+    void close() {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                boolean finished = closed;
+                long position = tail;
+                while (true) {
+                    int index = (int) position & (CAPACITY - 1);
+                    if (sequences.get(index) != position + 1) {
+                        break;
+                    }
+                    write(words[index * 3], words[index * 3 + 1], words[index * 3 + 2]);
+                    tail = ++position;
+                }
+                if (finished) {
+                    if (dropped.get() > 0) {
+                        out.writeByte(RECORD_DROPPED);
+                        out.writeLong(dropped.get());
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(1_000_000);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write(long first, long second, long payload) throws IOException {
+        int slot = (int) first;
+        int type = (int) (first >>> 32) & 0xFF;
+        int function = (int) second;
+        name(slot);
+        if (function >= 0) {
+            name(function);
+        }
+        if (type == TYPE_FUNCTION) {
+            name((int) payload);
+        }
+        out.writeByte(RECORD_EVENT);
+        out.writeByte((int) (first >>> 40));
+        out.writeByte(type);
+        out.writeInt(slot);
+        out.writeInt((int) (second >>> 32));
+        out.writeInt(function);
+        out.writeLong(payload);
+    }
+
+    private void name(int slot) throws IOException {
+        if (named.put(slot, Boolean.TRUE) == null) {
+            out.writeByte(RECORD_NAME);
+            out.writeInt(slot);
+            out.writeUTF(names.name(slot));
+        }
+    }
+
+    // Print a log file as one line per event
+    static void render(Path path, PrintStream text) throws IOException {
+        try (InputStream file = Files.newInputStream(path);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException(path + " is not a debug log");
+            }
+            Level recorded = Level.values()[in.readByte()];
+            int interval = in.readInt();
+            if (recorded == Level.SAMPLED) {
+                text.println("Sampled: one in " + interval + " changes");
+            }
+            Map<Integer, String> names = new HashMap<>();
+            while (true) {
+                int record;
+                try {
+                    record = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (record == RECORD_NAME) {
+                    int slot = in.readInt();
+                    names.put(slot, in.readUTF());
+                } else if (record == RECORD_EVENT) {
+                    int kind = in.readByte();
+                    int type = in.readByte();
+                    String name = names.get(in.readInt());
+                    int line = in.readInt();
+                    int function = in.readInt();
+                    String value = describe(type, in.readLong(), names);
+                    StringBuilder event = new StringBuilder();
+                    if (kind == CREATED) {
+                        event.append("Created ").append(name).append(" with value ").append(value);
+                    } else {
+                        event.append("Changed ").append(name).append(" to the value ").append(value);
+                    }
+                    if (function >= 0) {
+                        event.append(" in function ").append(names.get(function));
+                    } else {
+                        event.append(" on line ").append(line);
+                    }
+                    text.println(event);
+                } else if (record == RECORD_DROPPED) {
+                    text.println(in.readLong() + " sampled changes were dropped");
+                } else {
+                    throw new IOException("Unknown record " + record + " in " + path);
+                }
+            }
+        }
+    }
+
+    private static String describe(int type, long payload, Map<Integer, String> names) {
+        switch (type) {
+            case TYPE_NULL:
+                return "null";
+            case TYPE_INTEGER:
+                return Long.toString(payload);
+            case TYPE_DOUBLE:
+                return Double.toString(Double.longBitsToDouble(payload));
+            case TYPE_BOOLEAN:
+                return payload != 0 ? "true" : "false";
+            case TYPE_STRING:
+                return "a String of length " + payload;
+            case TYPE_LIST:
+                return "a List of " + payload + " items";
+            case TYPE_DICT:
+                return "a Dict of " + payload + " entries";
+            case TYPE_FUNCTION:
+                return "Function " + names.get((int) payload);
+            default:
+                return "an unknown value";
+        }
+    }
+}
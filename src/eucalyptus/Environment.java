@@ -1,74 +1,259 @@
 package eucalyptus;
 
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Environment {
-    private Deque<Map<String, Object>> scopes;
-    private PrintWriter debug;
+    private static final Object UNBOUND = new Object();
+    // marks a binding whose value is held unboxed in ints[slot]
+    private static final Object INT = new Object();
+    // source of function epochs, shared so no two Environments ever hold the same one
+    private static final AtomicInteger epochs = new AtomicInteger();
+
+    // Scoping is dynamic, so bindings are shallow: values[slot] is what a lookup of the
+    // name sees right now and owners[slot] is the depth of the scope that bound it. A
+    // scope remembers the bindings it shadowed and puts them back when it exits.
+    private final Names names;
+    private Object[] values = new Object[0];
+    private int[] ints = new int[0];
+    private int[] owners = new int[0];
+    private Scope[] scopes = new Scope[16];
+    private int depth;
+    // null when DebugLog.level is OFF
+    private final DebugLog debug;
+    // the execution running in this Environment, for the line and function of debug events
+    Context context;
+    // changes whenever the Function a name refers to may have changed, see Memo
+    int functionEpoch = epochs.incrementAndGet();
+
+    // The slots of the variable names one program uses, shared by the Environments that run
+    // it. Nodes resolve their names to slots when they are compiled so lookups at run time are
+    // array accesses, and an Environment only grows as far as the names of its own program.
+    static final class Names {
+        private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+        // name of each slot, guarded by slots
+        private final List<String> names = new ArrayList<>();
+
+        // Slot of a variable name, assigning one the first time the name is seen
+        int slot(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                synchronized (slots) {
+                    slot = slots.computeIfAbsent(name, key -> {
+                        names.add(key);
+                        return names.size() - 1;
+                    });
+                }
+            }
+            return slot;
+        }
+
+        String name(int slot) {
+            synchronized (slots) {
+                return names.get(slot);
+            }
+        }
+    }
+
+    // Bindings shadowed by one scope. Scopes are reused, so entering one does not allocate.
+    private static final class Scope {
+        int[] slots = new int[4];
+        Object[] saved = new Object[4];
+        int[] savedOwners = new int[4];
+        int count;
+        // null unless a recording wants scopes
+        Events.Scope event;
+
+        void save(int slot, Object value, int owner) {
+            if (count == slots.length) {
+                slots = Arrays.copyOf(slots, count * 2);
+                saved = Arrays.copyOf(saved, count * 2);
+                savedOwners = Arrays.copyOf(savedOwners, count * 2);
+            }
+            slots[count] = slot;
+            saved[count] = value;
+            savedOwners[count] = owner;
+            count++;
+        }
+    }
 
     public Environment() {
-        scopes = new LinkedList<>();
-        scopes.push(new HashMap<>());
-        try {
-            debug = new PrintWriter("../src/Debugger.txt");
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        this(new Names());
+    }
+
+    Environment(Names names) {
+        this(names, DebugLog.open(names));
+    }
+
+    // An Environment logging to debug, or to nothing when it is null
+    Environment(Names names, DebugLog debug) {
+        this.names = names;
+        this.debug = debug;
+    }
+
+    // The bindings parent can see right now, as globals of a new Environment for another
+    // thread. Both log to parent's debug log.
+    Environment(Environment parent) {
+        names = parent.names;
+        debug = parent.debug;
+        values = parent.values.clone();
+        ints = parent.ints.clone();
+        owners = new int[values.length];
+        for (int slot = 0; slot < values.length; slot++) {
+            owners[slot] = values[slot] == UNBOUND ? -1 : 0;
         }
     }
 
     // Enter a new scope
     public void enterScope() {
-        scopes.push(new HashMap<>());
+        depth++;
+        if (depth == scopes.length) {
+            scopes = Arrays.copyOf(scopes, depth * 2);
+        }
+        if (scopes[depth] == null) {
+            scopes[depth] = new Scope();
+        }
+        if (Events.scopes()) {
+            Events.Scope event = new Events.Scope();
+            event.depth = depth;
+            event.begin();
+            scopes[depth].event = event;
+        }
     }
 
     // Exit the current scope
     public void exitScope() {
-        if (scopes.size() > 1) {
-            scopes.pop();
-        } else {
+        if (depth == 0) {
             throw new IllegalStateException("Cannot exit global scope.");
         }
+        Scope scope = scopes[depth];
+        for (int i = scope.count - 1; i >= 0; i--) {
+            int slot = scope.slots[i];
+            if (values[slot] instanceof Function || scope.saved[i] instanceof Function) {
+                functionEpoch = epochs.incrementAndGet();
+            }
+            values[slot] = scope.saved[i];
+            owners[slot] = scope.savedOwners[i];
+            scope.saved[i] = null;
+        }
+        scope.count = 0;
+        if (scope.event != null) {
+            scope.event.commit();
+            scope.event = null;
+        }
+        depth--;
     }
 
     // Define or update a variable in the current scope
     public void setVariable(String name, Object value) {
-        if (!hasVariable(name)) {
-            String text = "Created " + name + " with value " + value;
-            debug.println(text);
-        } else {
-            String text = "Changed " + name + " to the value " + value;
-            debug.println(text);
+        setVariable(names.slot(name), name, value);
+    }
+
+    void setVariable(int slot, String name, Object value) {
+        if (slot >= values.length) {
+            grow(slot);
+        }
+        Object current = values[slot];
+        if (debug != null) {
+            debug.record(current == UNBOUND ? DebugLog.CREATED : DebugLog.CHANGED, slot, context, value);
+        }
+        if (value instanceof Function || current instanceof Function) {
+            functionEpoch = epochs.incrementAndGet();
+        }
+        bind(slot, current);
+        values[slot] = value;
+    }
+
+    // setVariable for an Integer value, stored without boxing it
+    void setInt(int slot, String name, int value) {
+        if (slot >= values.length) {
+            grow(slot);
+        }
+        Object current = values[slot];
+        if (debug != null) {
+            debug.recordInt(current == UNBOUND ? DebugLog.CREATED : DebugLog.CHANGED, slot, context, value);
+        }
+        if (current instanceof Function) {
+            functionEpoch = epochs.incrementAndGet();
+        }
+        bind(slot, current);
+        values[slot] = INT;
+        ints[slot] = value;
+    }
+
+    // Make the current scope own slot, remembering the binding it shadows
+    private void bind(int slot, Object current) {
+        if (owners[slot] != depth) {
+            if (depth > 0) {
+                scopes[depth].save(slot, current == INT ? Operations.box(ints[slot]) : current, owners[slot]);
+            }
+            owners[slot] = depth;
         }
-        scopes.peek().put(name, value);
     }
 
     // Retrieve a variable from the current or outer scopes
     public Object getVariable(String name) {
-        for (Map<String, Object> scope : scopes) {
-            if (scope.containsKey(name)) {
-                return scope.get(name);
+        return getVariable(names.slot(name));
+    }
+
+    Object getVariable(int slot) {
+        if (slot >= values.length) {
+            return null;
+        }
+        Object value = values[slot];
+        if (value == INT) {
+            return Operations.box(ints[slot]);
+        }
+        return value == UNBOUND ? null : value;
+    }
+
+    // Whether slot is bound to an Integer held unboxed, which getInt then returns
+    boolean isInt(int slot) {
+        return slot < values.length && values[slot] == INT;
+    }
+
+    int getInt(int slot) {
+        return ints[slot];
+    }
+
+    // Every variable the global scope binds, in the order their names were first seen
+    Map<String, Object> globals() {
+        Map<String, Object> globals = new LinkedHashMap<>();
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != UNBOUND && owners[slot] == 0) {
+                globals.put(names.name(slot), getVariable(slot));
             }
         }
-        return null;
+        return globals;
     }
 
     // Check if a variable exists in any scope
     public boolean hasVariable(String name) {
-        for (Map<String, Object> scope : scopes) {
-            if (scope.containsKey(name)) {
-                return true;
-            }
-        }
-        return false;
+        return hasVariable(names.slot(name));
+    }
+
+    boolean hasVariable(int slot) {
+        return slot < values.length && values[slot] != UNBOUND;
+    }
+
+    private void grow(int slot) {
+        int length = values.length;
+        int newLength = Math.max(slot + 1, Math.max(16, length * 2));
+        values = Arrays.copyOf(values, newLength);
+        ints = Arrays.copyOf(ints, newLength);
+        owners = Arrays.copyOf(owners, newLength);
+        Arrays.fill(values, length, newLength, UNBOUND);
+        Arrays.fill(owners, length, newLength, -1);
     }
 
     public void closeDebugger() {
-        debug.close();
+        if (debug != null) {
+            debug.close();
+        }
     }
 }
@@ -1,9 +1,12 @@
 package eucalyptus;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Scanner;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 @FunctionalInterface
@@ -12,11 +15,33 @@ interface FileRunner {
 }
 
 public class Eucalyptus {
+    private static boolean parallelParse = false;
+    private static boolean virtualMachine = false;
+    private static boolean startupTime = false;
+
     public static void main(String[] args) {
-        if (args.length > 0) {
-            String argument = args[0];
+        int first = 0;
+        while (first < args.length && args[first].startsWith("--")) {
+            if (!applyOption(args[first])) {
+                System.out.println("Unknown option: " + args[first]);
+                return;
+            }
+            first++;
+        }
+
+        if (args.length > first) {
+            String argument = args[first];
             if (argument.equalsIgnoreCase("test")) {
                 runTests();
+            } else if (argument.equalsIgnoreCase("perf")) {
+                runPerformance(args.length > first + 1 && args[first + 1].equalsIgnoreCase("save"));
+            } else if (argument.equalsIgnoreCase("compile") && args.length > first + 1) {
+                compileFile(args[first + 1]);
+            } else if (argument.equalsIgnoreCase("snapshot") && args.length > first + 1) {
+                Path prelude = Paths.get(args[first + 1]);
+                snapshotFile(prelude, args.length > first + 2 ? Paths.get(args[first + 2]) : Snapshot.path(prelude));
+            } else if (argument.equalsIgnoreCase("log")) {
+                printLog(args.length > first + 1 ? Paths.get(args[first + 1]) : DebugLog.PATH);
             } else {
                 runFile(argument);
             }
@@ -25,15 +50,196 @@ public class Eucalyptus {
         }
     }
 
+    private static boolean applyOption(String option) {
+        switch (option) {
+            case "--parallel-parse":
+                parallelParse = true;
+                return true;
+            case "--engine=tree":
+                virtualMachine = false;
+                return true;
+            case "--engine=vm":
+                virtualMachine = true;
+                return true;
+            case "--jit":
+                JitCompiler.enabled = true;
+                return true;
+            case "--startup-time":
+                startupTime = true;
+                return true;
+            case "--check":
+                Checker.enabled = true;
+                return true;
+            case "--no-optimize":
+                Optimizer.enabled = false;
+                return true;
+            case "--dump-ast":
+                Optimizer.dump = true;
+                return true;
+            case "--memoize":
+                Memo.enabled = true;
+                return true;
+            case "--memo-stats":
+                Memo.enabled = true;
+                Memo.statistics = true;
+                return true;
+            case "--profile":
+                Profiler.mode = Profiler.Mode.SAMPLED;
+                return true;
+            case "--profile=calls":
+                Profiler.mode = Profiler.Mode.INSTRUMENTED;
+                return true;
+            case "--jfr":
+                Events.enabled = true;
+                return true;
+            case "--debug-log=off":
+                DebugLog.level = DebugLog.Level.OFF;
+                return true;
+            case "--debug-log=sampled":
+                DebugLog.level = DebugLog.Level.SAMPLED;
+                return true;
+            case "--debug-log=full":
+                DebugLog.level = DebugLog.Level.FULL;
+                return true;
+            default:
+                if (option.startsWith("--memo-size=")) {
+                    try {
+                        Memo.size = Integer.parseInt(option.substring("--memo-size=".length()));
+                        Memo.enabled = true;
+                        return true;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (option.startsWith("--snapshot=")) {
+                    Snapshot.path = Paths.get(option.substring("--snapshot=".length()));
+                    return true;
+                }
+                if (option.startsWith("--debug-sample=")) {
+                    try {
+                        DebugLog.sampleEvery = Integer.parseInt(option.substring("--debug-sample=".length()));
+                        DebugLog.level = DebugLog.Level.SAMPLED;
+                        return DebugLog.sampleEvery > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (option.startsWith("--perf-warmup=")) {
+                    try {
+                        TestHarness.warmup = Integer.parseInt(option.substring("--perf-warmup=".length()));
+                        return TestHarness.warmup >= 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (option.startsWith("--perf-runs=")) {
+                    try {
+                        TestHarness.runs = Integer.parseInt(option.substring("--perf-runs=".length()));
+                        return TestHarness.runs > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (option.startsWith("--perf-threshold=")) {
+                    try {
+                        TestHarness.threshold = Double.parseDouble(option.substring("--perf-threshold=".length()));
+                        return TestHarness.threshold >= 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (option.startsWith("--perf-floor=")) {
+                    try {
+                        double floor = Double.parseDouble(option.substring("--perf-floor=".length()));
+                        TestHarness.timeFloor = (long) (floor * 1e6);
+                        return floor >= 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (option.startsWith("--profile-interval=")) {
+                    try {
+                        Profiler.interval = Integer.parseInt(option.substring("--profile-interval=".length()));
+                        if (Profiler.mode == Profiler.Mode.OFF) {
+                            Profiler.mode = Profiler.Mode.SAMPLED;
+                        }
+                        return Profiler.interval > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (option.startsWith("--profile-out=")) {
+                    Profiler.path = Paths.get(option.substring("--profile-out=".length()));
+                    if (Profiler.mode == Profiler.Mode.OFF) {
+                        Profiler.mode = Profiler.Mode.SAMPLED;
+                    }
+                    return true;
+                }
+                if (option.startsWith("--jit-threshold=")) {
+                    try {
+                        JitCompiler.threshold = Integer.parseInt(option.substring("--jit-threshold=".length()));
+                        JitCompiler.enabled = true;
+                        return true;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                return false;
+        }
+    }
+
     private static void runFile(String filename) {
         try {
-            String content = Files.readString(Paths.get(filename));
-            run(content);
+            Path path = Paths.get(filename);
+            byte[] content = Files.readAllBytes(path);
+            List<FunctionCall> program = BinaryProgram.load(path, content);
+            if (program == null) {
+                run(new String(content, StandardCharsets.UTF_8));
+            } else {
+                execute(program);
+            }
         } catch (IOException e) {
             System.out.println("Error reading file: " + filename);
         }
     }
 
+    private static void compileFile(String filename) {
+        try {
+            Path target = BinaryProgram.compile(Paths.get(filename));
+            System.out.println("Compiled " + filename + " to " + target);
+        } catch (IOException e) {
+            System.out.println("Error reading file: " + filename);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static void snapshotFile(Path prelude, Path target) {
+        try {
+            List<FunctionCall> program = new Parser(Files.readString(prelude)).parse();
+            Interpreter interpreter = new Interpreter(program, virtualMachine);
+            try {
+                interpreter.interpret();
+            } finally {
+                interpreter.closeDebugger();
+            }
+            interpreter.saveSnapshot(target);
+            System.out.println("Saved the globals of " + prelude + " to " + target);
+        } catch (IOException e) {
+            System.out.println("Error writing snapshot: " + e.getMessage());
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static void printLog(Path path) {
+        try {
+            DebugLog.render(path, System.out);
+        } catch (IOException e) {
+            System.out.println("Error reading debug log: " + e.getMessage());
+        }
+    }
+
     private static void runPrompt() {
         Scanner scanner = new Scanner(System.in);
         System.out.println("Please enter input (type 'exit' to stop):");
@@ -49,10 +255,32 @@ public class Eucalyptus {
     private static void run(String input) {
         try {
             Parser parser = new Parser(input);
-            List<FunctionCall> functions = parser.parse();
-            Interpreter interpreter = new Interpreter(functions);
-            interpreter.interpret();
-            interpreter.closeDebugger();
+            List<FunctionCall> functions = parallelParse ? parser.parseParallel() : parser.parse();
+            execute(functions);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static void execute(List<FunctionCall> functions) {
+        try {
+            Interpreter interpreter = new Interpreter(functions, virtualMachine);
+            long firstStatement = System.currentTimeMillis();
+            try {
+                interpreter.interpret();
+            } finally {
+                interpreter.closeDebugger();
+                if (Profiler.mode != Profiler.Mode.OFF) {
+                    Profiler.report(System.err);
+                }
+                if (Memo.statistics) {
+                    Memo.printStatistics();
+                }
+            }
+            if (startupTime) {
+                long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+                System.err.println("First statement " + (firstStatement - start) + " ms after the JVM started");
+            }
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
@@ -62,4 +290,12 @@ public class Eucalyptus {
         TestHarness testHarness = new TestHarness(Eucalyptus::runFile);
         testHarness.run();
     }
+
+    // Exits with status 1 if a test got slower than the baseline allows, to fail a build
+    private static void runPerformance(boolean save) {
+        TestHarness testHarness = new TestHarness(Eucalyptus::runFile);
+        if (!testHarness.runPerformance(save)) {
+            System.exit(1);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+package eucalyptus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+// Entry point for running Eucalyptus inside another JVM program, also available through
+// javax.script as "eucalyptus".
+//
+// compile turns source into an EucalyptusScript once; a script holds no state of its own
+// runs, so any number of threads may run it at the same time, each with its own variables
+// and output. eval compiles through a cache of the most recently used sources, so running
+// the same few scripts over and over only parses them once. Scripts run on the tree-walking
+// engine with the options set for the command line, and without the debug log.
+public final class EucalyptusEngine extends AbstractScriptEngine implements Compilable {
+    // sources kept compiled by eval
+    static int cacheSize = 256;
+
+    private final ScriptEngineFactory factory;
+    private final Map<String, EucalyptusScript> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EucalyptusScript> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    public EucalyptusEngine() {
+        this(new EucalyptusEngineFactory());
+    }
+
+    EucalyptusEngine(ScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public EucalyptusScript compile(String source) throws ScriptException {
+        synchronized (cache) {
+            EucalyptusScript script = cache.get(source);
+            if (script != null) {
+                return script;
+            }
+        }
+        List<FunctionCall> functions;
+        try {
+            functions = new Parser(source).parse();
+        } catch (Exception e) {
+            throw new ScriptException(e.getMessage());
+        }
+        EucalyptusScript script;
+        try {
+            script = new EucalyptusScript(this, functions);
+        } catch (RuntimeException e) {
+            throw new ScriptException(e.getMessage());
+        }
+        synchronized (cache) {
+            cache.put(source, script);
+        }
+        return script;
+    }
+
+    @Override
+    public EucalyptusScript compile(Reader source) throws ScriptException {
+        return compile(read(source));
+    }
+
+    @Override
+    public Object eval(String source, ScriptContext context) throws ScriptException {
+        return compile(source).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader source, ScriptContext context) throws ScriptException {
+        return eval(read(source), context);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    private static String read(Reader source) throws ScriptException {
+        try (BufferedReader reader = new BufferedReader(source)) {
+            return reader.lines().collect(Collectors.joining("\n"));
+        } catch (IOException | RuntimeException e) {
+            throw new ScriptException("Error reading script: " + e.getMessage());
+        }
+    }
+}
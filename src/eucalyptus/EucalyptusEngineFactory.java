@@ -0,0 +1,92 @@
+package eucalyptus;
+
+import java.util.List;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+// Makes EucalyptusEngine available through javax.script.ScriptEngineManager, registered in
+// META-INF/services/javax.script.ScriptEngineFactory
+public final class EucalyptusEngineFactory implements ScriptEngineFactory {
+    private static final String VERSION = "1.0";
+
+    @Override
+    public String getEngineName() {
+        return "Eucalyptus";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("euc");
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of("text/x-eucalyptus");
+    }
+
+    @Override
+    public List<String> getNames() {
+        return List.of("eucalyptus", "Eucalyptus", "euc");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "Eucalyptus";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE:
+                return getEngineName();
+            case ScriptEngine.ENGINE_VERSION:
+                return getEngineVersion();
+            case ScriptEngine.NAME:
+                return getNames().get(0);
+            case ScriptEngine.LANGUAGE:
+                return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION:
+                return getLanguageVersion();
+            case "THREADING":
+                // runs never share variables, only the bindings they were given
+                return "MULTITHREADED";
+            default:
+                return null;
+        }
+    }
+
+    // Eucalyptus has no methods, only functions taking the value first
+    @Override
+    public String getMethodCallSyntax(String object, String method, String... arguments) {
+        StringBuilder call = new StringBuilder(method).append('(').append(object);
+        for (String argument : arguments) {
+            call.append(", ").append(argument);
+        }
+        return call.append(')').toString();
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print(\"" + toDisplay.replace("\"", "'") + "\")";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        return String.join("\n", statements);
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new EucalyptusEngine(this);
+    }
+}
@@ -0,0 +1,106 @@
+package eucalyptus;
+
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+// A program compiled by EucalyptusEngine. One script may be run by many threads at once;
+// every run gets a fresh Environment and Context, which hold all of its variables and loop
+// invariants, and prints straight to its writer.
+//
+// Running still writes to the shared nodes, in two ways that are safe without locking:
+// - Node.Call.target caches the last Function a call resolved to. The cache is one reference
+//   to an immutable Target, keyed by a function epoch no other Environment shares, so a run
+//   that reads another run's Target only finds it stale and resolves the call itself.
+// - The ints flags of Call, Def, Add, Sub, Mult and LessThan only ever go from true to
+//   false, once a value was not an Integer. A run that still sees true takes the Integer path
+//   and falls back to the boxed one when its UnexpectedResult comes, as the first run did.
+public final class EucalyptusScript extends CompiledScript {
+    private final EucalyptusEngine engine;
+    private final Node[] program;
+    // slots of the script's variable names, shared by the Environments of all its runs
+    private final Environment.Names names = new Environment.Names();
+
+    EucalyptusScript(EucalyptusEngine engine, List<FunctionCall> functions) {
+        this.engine = engine;
+        Node[] compiled = new Compiler(Interpreter.reservedFunctions(), names).compile(functions);
+        this.program = Interpreter.prepare(compiled, Optimizer.enabled ? new Optimizer() : null, Map.of());
+    }
+
+    // Run with the global and engine bindings of context as variables, the engine's winning,
+    // and print to its writer. The variables the script leaves defined go to the engine
+    // bindings.
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        Map<String, Object> variables = new HashMap<>();
+        Bindings global = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+        if (global != null) {
+            variables.putAll(global);
+        }
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (bindings != null) {
+            variables.putAll(bindings);
+        }
+        Map<String, Object> defined = new HashMap<>();
+        Object value = run(variables, defined, context.getWriter());
+        if (bindings != null) {
+            bindings.putAll(defined);
+        }
+        return value;
+    }
+
+    // Run with bindings as the global variables, printing to output, and put the variables the
+    // script leaves defined back into bindings. Returns the value of the last statement.
+    public Object eval(Map<String, Object> bindings, Writer output) throws ScriptException {
+        return run(bindings, bindings, output);
+    }
+
+    private Object run(Map<String, Object> variables, Map<String, Object> defined, Writer output)
+            throws ScriptException {
+        Context context = new Context(new Environment(names, null));
+        for (Map.Entry<String, Object> variable : variables.entrySet()) {
+            context.env.setVariable(variable.getKey(), value(variable.getValue()));
+        }
+        Appendable outer = Operations.output.get();
+        Operations.output.set(output == null ? Writer.nullWriter() : output);
+        Object value;
+        try {
+            value = Interpreter.run(program, context);
+        } catch (RuntimeException e) {
+            throw new ScriptException(Interpreter.error(context, e));
+        } finally {
+            Operations.output.set(outer);
+        }
+        for (Map.Entry<String, Object> variable : context.env.globals().entrySet()) {
+            defined.put(variable.getKey(), Rope.flatten(variable.getValue()));
+        }
+        return Rope.flatten(value);
+    }
+
+    // A Java value as the Eucalyptus value closest to it
+    private static Object value(Object value) {
+        if (value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long number = ((Number) value).longValue();
+            if (number == (int) number) {
+                return Operations.box((int) number);
+            }
+            return (double) number;
+        } else if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        } else if (value instanceof List) {
+            return PersistentList.copyOf((List<?>) value);
+        }
+        return value;
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+}
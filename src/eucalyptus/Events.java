@@ -0,0 +1,162 @@
+package eucalyptus;
+
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// Flight Recorder events for what the interpreter does, in the "Eucalyptus" category.
+//
+// An event is only committed while a recording enables it and it lasted at least its
+// threshold, both set like those of JDK events: in a .jfc file (src/eucalyptus.jfc lists
+// them all) or in JDK Mission Control. Loading the first event class initializes Flight
+// Recorder, which adds a few hundred milliseconds to startup, so none is touched unless a
+// recording was running when the program started, --jfr was passed or the system property
+// eucalyptus.jfr is true. The methods creating events return null otherwise.
+final class Events {
+    static boolean enabled = System.getProperty("jdk.jfr.repository") != null || Boolean.getBoolean("eucalyptus.jfr");
+
+    private Events() {
+    }
+
+    // one of each, to ask whether recordings want them without creating one
+    private static final class Probes {
+        static final Call CALL = new Call();
+        static final Scope SCOPE = new Scope();
+    }
+
+    @Name("eucalyptus.FunctionCall")
+    @Label("Function Call")
+    @Description("A call of a user Function, including the Functions it called")
+    @Category("Eucalyptus")
+    @Threshold("10 ms")
+    static final class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("Top-level statement that made the call, counting from 1")
+        int line;
+
+        void record(String function, Context context) {
+            end();
+            if (shouldCommit()) {
+                this.function = function;
+                line = context.line;
+                commit();
+            }
+        }
+    }
+
+    @Name("eucalyptus.Scope")
+    @Label("Scope")
+    @Description("A scope of Environment, from entering it until exiting it")
+    @Category("Eucalyptus")
+    @Enabled(false)
+    @Threshold("10 ms")
+    static final class Scope extends Event {
+        @Label("Depth")
+        int depth;
+    }
+
+    @Name("eucalyptus.CollectionCopy")
+    @Label("Collection Copy")
+    @Description("add or sub of a List or Dict that builds the result item by item")
+    @Category("Eucalyptus")
+    @Threshold("1 ms")
+    static final class Copy extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Type")
+        String type;
+
+        @Label("Size")
+        @Description("Items in the result")
+        int size;
+
+        // collection is the result, which is returned
+        Object record(String operation, Object collection) {
+            end();
+            if (shouldCommit()) {
+                this.operation = operation;
+                type = Operations.getLiteralName(collection);
+                size = collection instanceof List ? ((List<?>) collection).size() : ((Map<?, ?>) collection).size();
+                commit();
+            }
+            return collection;
+        }
+    }
+
+    @Name("eucalyptus.Parse")
+    @Label("Parse")
+    @Description("A phase of parsing a program: lex turns it into tokens, parse into statements")
+    @Category("Eucalyptus")
+    @Threshold("0 ms")
+    static final class Parse extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Characters")
+        int characters;
+
+        @Label("Statements")
+        @Description("Statements parsed, 0 for lex")
+        int statements;
+
+        void record(String phase, int characters, int statements) {
+            end();
+            if (shouldCommit()) {
+                this.phase = phase;
+                this.characters = characters;
+                this.statements = statements;
+                commit();
+            }
+        }
+    }
+
+    static boolean calls() {
+        return enabled && Probes.CALL.isEnabled();
+    }
+
+    static boolean scopes() {
+        return enabled && Probes.SCOPE.isEnabled();
+    }
+
+    static Call call() {
+        if (!enabled) {
+            return null;
+        }
+        Call event = new Call();
+        event.begin();
+        return event;
+    }
+
+    static Copy copy() {
+        if (!enabled) {
+            return null;
+        }
+        Copy event = new Copy();
+        event.begin();
+        return event;
+    }
+
+    static Parse parse() {
+        if (!enabled) {
+            return null;
+        }
+        Parse event = new Parse();
+        event.begin();
+        return event;
+    }
+
+    // collection, after committing event if it is not null
+    static Object copied(Copy event, String operation, Object collection) {
+        return event == null ? collection : event.record(operation, collection);
+    }
+}
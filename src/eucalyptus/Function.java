@@ -1,31 +1,216 @@
 package eucalyptus;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class Function {
     private String name;
     private List<Variable> parameters;
     private List<FunctionCall> statements;
+    private String[] parameterNames;
+    private int[] parameterSlots;
+    private Node[] body;
+    private BytecodeCompiler.Chunk chunk;
 
-    public Function(String name, List<Variable> parameters, List<FunctionCall> statements) {
+    // Tiering state, only used while JitCompiler.enabled
+    private int calls;
+    private Class<?>[] argumentTypes;
+    private JitCompiler.Body compiled;
+    private boolean compileFailed;
+
+    // Memoization state, only used while Memo.enabled; memo is null if the Function is impure
+    private Memo memo;
+    private int memoEpoch = -1;
+
+    // Compiles a Function restored from a Snapshot; null once that was done on first use
+    private volatile Supplier<Function> pending;
+    // parameter count, known before a restored definition is compiled
+    private int arity;
+
+    Function(String name, List<Variable> parameters, List<FunctionCall> statements, String[] parameterNames,
+            int[] parameterSlots, Node[] body, BytecodeCompiler.Chunk chunk) {
         this.name = name;
         this.parameters = parameters;
         this.statements = statements;
+        this.parameterNames = parameterNames;
+        this.parameterSlots = parameterSlots;
+        this.arity = parameters == null ? -1 : parameters.size();
+        this.body = body;
+        this.chunk = chunk;
+    }
+
+    // A Function whose definition is only compiled once it is used
+    static Function restored(String name, int arity, Supplier<Function> definition) {
+        Function function = new Function(name, null, null, null, null, null, null);
+        function.arity = arity;
+        function.pending = definition;
+        return function;
+    }
+
+    private synchronized void define() {
+        if (pending != null) {
+            Function definition = pending.get();
+            parameters = definition.parameters;
+            statements = definition.statements;
+            parameterNames = definition.parameterNames;
+            parameterSlots = definition.parameterSlots;
+            body = definition.body;
+            chunk = definition.chunk;
+            pending = null;
+        }
     }
 
     public String getName() {
         return name;
     }
 
+    int getArity() {
+        return arity;
+    }
+
     public List<Variable> getParameters() {
+        if (pending != null) {
+            define();
+        }
         return parameters;
     }
 
     public List<FunctionCall> getStatements() {
+        if (pending != null) {
+            define();
+        }
         return statements;
     }
 
+    // Null if any parameter is not a Variable
+    String[] getParameterNames() {
+        if (pending != null) {
+            define();
+        }
+        return parameterNames;
+    }
+
+    int[] getParameterSlots() {
+        if (pending != null) {
+            define();
+        }
+        return parameterSlots;
+    }
+
+    Node[] getBody() {
+        if (pending != null) {
+            define();
+        }
+        return body;
+    }
+
+    // Body compiled for the bytecode engine, null for functions defined by the tree engine
+    BytecodeCompiler.Chunk getChunk() {
+        if (pending != null) {
+            define();
+        }
+        return chunk;
+    }
+
+    // Run the body in the current scope, once the arguments are bound. A self call in tail
+    // position rebinds the arguments in this scope and the body simply runs again.
+    Object executeBody(Context context) {
+        if (pending != null) {
+            define();
+        }
+        if (Memo.enabled) {
+            return executeMemoized(context);
+        }
+        return execute(context);
+    }
+
+    private Object execute(Context context) {
+        Object value;
+        do {
+            value = executeOnce(context);
+        } while (value == Node.Call.TAIL_CALL);
+        return value;
+    }
+
+    private Object executeMemoized(Context context) {
+        Environment env = context.env;
+        if (memoEpoch != env.functionEpoch) {
+            memoEpoch = env.functionEpoch;
+            if (Memo.isPure(this, env)) {
+                if (memo == null) {
+                    memo = new Memo(name);
+                } else {
+                    memo.clear();
+                }
+            } else if (memo != null) {
+                memo.clear();
+                memo = null;
+            }
+        }
+        Memo memo = this.memo;
+        if (memo == null) {
+            return execute(context);
+        }
+
+        Object[] arguments = new Object[parameterSlots.length];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = env.getVariable(parameterSlots[i]);
+        }
+        List<Object> key = Arrays.asList(arguments);
+        Object value = memo.get(key);
+        if (value == null) {
+            value = execute(context);
+            memo.put(key, value);
+        }
+        return value;
+    }
+
+    // Hot functions are compiled to JVM bytecode and run through that, falling back to the
+    // interpreter when a guard fails
+    private Object executeOnce(Context context) {
+        // read once, parallel loops may call this from several threads
+        JitCompiler.Body compiledBody = compiled;
+        if (compiledBody != null) {
+            Object value = compiledBody.execute(context);
+            if (value != JitCompiler.Body.DEOPT) {
+                return value;
+            }
+            // recompile later with guards that also cover the argument types just seen
+            compiled = null;
+            calls = 0;
+        }
+        if (JitCompiler.enabled && !compileFailed) {
+            observeArguments(context);
+            if (++calls >= JitCompiler.threshold) {
+                compiledBody = JitCompiler.compile(this, argumentTypes);
+                compileFailed = compiledBody == null;
+                compiled = compiledBody;
+            }
+        }
+        return Node.executeBody(body, context);
+    }
+
+    // Record the class of each bound argument, or Object once a parameter has seen several
+    private void observeArguments(Context context) {
+        if (argumentTypes == null) {
+            argumentTypes = new Class<?>[parameterNames.length];
+        }
+        for (int i = 0; i < parameterNames.length; i++) {
+            Object value = context.env.getVariable(parameterSlots[i]);
+            Class<?> type = value == null ? Object.class : value.getClass();
+            if (argumentTypes[i] == null) {
+                argumentTypes[i] = type;
+            } else if (argumentTypes[i] != type) {
+                argumentTypes[i] = Object.class;
+            }
+        }
+    }
+
     public String toString() {
+        if (pending != null) {
+            define();
+        }
         return name + "(" + parameters + ") {" + statements + "}";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,608 @@
+package eucalyptus;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static eucalyptus.ClassFileWriter.*;
+
+// Second tier of the tree engine. Once a Function has been called JitCompiler.threshold
+// times its body is translated into a JVM class, loaded as a hidden class, and run
+// directly, so HotSpot can inline and optimize Eucalyptus code like any Java method.
+//
+// Parameters that were always bound to Integers are guarded on entry and kept in int
+// locals; a failed guard returns Body.DEOPT before any side effect and the caller runs
+// the interpreted body instead. Nodes with no direct translation run through their own
+// execute method, so every body can be compiled.
+final class JitCompiler {
+    static boolean enabled = false;
+    static int threshold = 500;
+
+    // Superclass of every generated class
+    abstract static class Body {
+        static final Object DEOPT = new Object();
+
+        final Object[] constants;
+
+        Body(Object[] constants) {
+            this.constants = constants;
+        }
+
+        abstract Object execute(Context context);
+    }
+
+    private static final String SELF = "eucalyptus/JitCompiler";
+    private static final String BODY = "eucalyptus/JitCompiler$Body";
+    private static final String NODE = "eucalyptus/Node";
+    private static final String OPERATIONS = "eucalyptus/Operations";
+    private static final String CONTEXT = "Leucalyptus/Context;";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String STRING = "Ljava/lang/String;";
+
+    // static types of compiled expressions; VOID leaves nothing on the stack and stands for null
+    private static final int REFERENCE = 0;
+    private static final int INT = 1;
+    private static final int BOOLEAN = 2;
+    private static final int VOID = 3;
+
+    private static final int THIS = 0;
+    private static final int CONTEXT_LOCAL = 1;
+    private static final int CONSTANTS_LOCAL = 2;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+    // int locals holding parameters that are guarded as Integer and never reassigned
+    private final Map<String, Integer> intParameters = new HashMap<>();
+    private ClassFileWriter writer;
+    private ClassFileWriter.Code code;
+
+    private JitCompiler() {
+    }
+
+    // Returns null if the body could not be compiled
+    static Body compile(Function function, Class<?>[] argumentTypes) {
+        try {
+            return new JitCompiler().compileBody(function, argumentTypes);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private Body compileBody(Function function, Class<?>[] argumentTypes) throws Throwable {
+        writer = new ClassFileWriter("eucalyptus/Jit_" + function.getName(), BODY);
+
+        ClassFileWriter.Code constructor = writer.method(0, "<init>", "([Ljava/lang/Object;)V", 2);
+        constructor.load(ALOAD, THIS);
+        constructor.load(ALOAD, 1);
+        constructor.invoke(INVOKESPECIAL, BODY, "<init>", "([Ljava/lang/Object;)V");
+        constructor.op(RETURN, 0);
+        constructor.finish();
+
+        code = writer.method(0, "execute", "(" + CONTEXT + ")" + OBJECT, 3);
+        code.load(ALOAD, THIS);
+        code.getField(BODY, "constants", "[Ljava/lang/Object;");
+        code.store(ASTORE, CONSTANTS_LOCAL);
+
+        Set<String> assigned = new HashSet<>();
+        for (Node statement : function.getBody()) {
+            collectAssigned(statement, assigned);
+        }
+        String[] parameterNames = function.getParameterNames();
+        ClassFileWriter.Label deopt = new ClassFileWriter.Label();
+        boolean guarded = false;
+        for (int i = 0; i < parameterNames.length; i++) {
+            String name = parameterNames[i];
+            if (argumentTypes[i] != Integer.class || assigned.contains(name) || intParameters.containsKey(name)) {
+                continue;
+            }
+            int value = code.newLocal();
+            loadContext();
+            code.iconst(function.getParameterSlots()[i]);
+            code.invoke(INVOKESTATIC, SELF, "lookup", "(" + CONTEXT + "I)" + OBJECT);
+            code.store(ASTORE, value);
+            code.load(ALOAD, value);
+            code.type(INSTANCEOF, "java/lang/Integer");
+            code.jump(IFEQ, deopt);
+            code.load(ALOAD, value);
+            code.type(CHECKCAST, "java/lang/Integer");
+            code.invoke(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+            code.store(ISTORE, value);
+            intParameters.put(name, value);
+            guarded = true;
+        }
+
+        int result = code.newLocal();
+        boolean returned = false;
+        for (Node statement : function.getBody()) {
+            int type = compile(statement, true);
+            if (type == VOID) {
+                continue;
+            }
+            if (type != REFERENCE) {
+                box(type);
+                code.op(ARETURN, -1);
+                // statements after one that always returns are never reached
+                returned = true;
+                break;
+            }
+            ClassFileWriter.Label next = new ClassFileWriter.Label();
+            code.store(ASTORE, result);
+            code.load(ALOAD, result);
+            code.jump(IFNULL, next);
+            code.load(ALOAD, result);
+            code.op(ARETURN, -1);
+            code.mark(next);
+        }
+        if (!returned) {
+            code.op(ACONST_NULL, 1);
+            code.op(ARETURN, -1);
+        }
+        if (guarded) {
+            code.mark(deopt);
+            code.invoke(INVOKESTATIC, SELF, "deopt", "()" + OBJECT);
+            code.op(ARETURN, -1);
+        }
+        code.finish();
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+        return (Body) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Object[].class))
+                .invoke(constants.toArray());
+    }
+
+    // Names the body may rebind in the function's own scope
+    private static void collectAssigned(Node node, Set<String> assigned) {
+        if (node instanceof Node.Def) {
+            assigned.add(((Node.Def) node).name);
+            collectAssigned(((Node.Def) node).value, assigned);
+        } else if (node instanceof Node.DefFunction) {
+            assigned.add(((Node.DefFunction) node).name);
+        } else if (node instanceof Node.Inc) {
+            assigned.add(((Node.Inc) node).variableName);
+            collectAssigned(((Node.Inc) node).amount, assigned);
+        } else if (node instanceof Node.ForEach) {
+            Node.ForEach forEach = (Node.ForEach) node;
+            assigned.add(forEach.variableName);
+            if (forEach.list != null) {
+                collectAssigned(forEach.list, assigned);
+            }
+            collectAllAssigned(forEach.statements, assigned);
+        } else if (node instanceof Node.While) {
+            collectAssigned(((Node.While) node).condition, assigned);
+            collectAllAssigned(((Node.While) node).statements, assigned);
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            collectAssigned(ifNode.condition, assigned);
+            collectAssigned(ifNode.then, assigned);
+            if (ifNode.otherwise != null) {
+                collectAssigned(ifNode.otherwise, assigned);
+            }
+        } else if (node instanceof Node.Eq) {
+            collectAssigned(((Node.Eq) node).first, assigned);
+            collectAssigned(((Node.Eq) node).second, assigned);
+        } else if (node instanceof Node.LessThan) {
+            collectAssigned(((Node.LessThan) node).first, assigned);
+            collectAssigned(((Node.LessThan) node).second, assigned);
+        } else if (node instanceof Node.Get) {
+            collectAssigned(((Node.Get) node).key, assigned);
+        } else if (node instanceof Node.Len) {
+            collectAssigned(((Node.Len) node).value, assigned);
+        } else if (node instanceof Node.ListLiteral) {
+            collectAllAssigned(((Node.ListLiteral) node).items, assigned);
+        } else if (node instanceof Node.Call) {
+            collectAllAssigned(((Node.Call) node).arguments, assigned);
+        } else {
+            Node[] arguments = variadicArguments(node);
+            if (arguments != null) {
+                collectAllAssigned(arguments, assigned);
+            }
+        }
+    }
+
+    private static void collectAllAssigned(Node[] nodes, Set<String> assigned) {
+        for (Node node : nodes) {
+            collectAssigned(node, assigned);
+        }
+    }
+
+    private static Node[] variadicArguments(Node node) {
+        if (node instanceof Node.Add) {
+            return ((Node.Add) node).arguments;
+        } else if (node instanceof Node.Sub) {
+            return ((Node.Sub) node).arguments;
+        } else if (node instanceof Node.Mult) {
+            return ((Node.Mult) node).arguments;
+        } else if (node instanceof Node.And) {
+            return ((Node.And) node).arguments;
+        } else if (node instanceof Node.Or) {
+            return ((Node.Or) node).arguments;
+        } else if (node instanceof Node.Print) {
+            return ((Node.Print) node).arguments;
+        }
+        return null;
+    }
+
+    // Emit node and return the static type of what it left on the stack. direct is false
+    // once a scope may have been pushed since entry (loop bodies, later call arguments), where
+    // a parameter name could resolve to another binding and must be looked up.
+    private int compile(Node node, boolean direct) {
+        if (node instanceof Node.Constant) {
+            return compileConstant(((Node.Constant) node).value);
+        } else if (node instanceof Node.Read) {
+            String name = ((Node.Read) node).name;
+            Integer local = direct ? intParameters.get(name) : null;
+            if (local != null) {
+                code.load(ILOAD, local);
+                return INT;
+            }
+            loadVariable(((Node.Read) node).slot, name);
+            code.invoke(INVOKESTATIC, SELF, "read", "(" + CONTEXT + "I" + STRING + ")" + OBJECT);
+            return REFERENCE;
+        } else if (node instanceof Node.ListLiteral) {
+            code.type(NEW, "java/util/ArrayList");
+            code.op(DUP, 1);
+            code.invoke(INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V");
+            for (Node item : ((Node.ListLiteral) node).items) {
+                code.op(DUP, 1);
+                compileReference(item, direct);
+                code.invoke(INVOKESTATIC, SELF, "addItem", "(Ljava/util/List;" + OBJECT + ")V");
+            }
+            code.invoke(INVOKESTATIC, "eucalyptus/PersistentList", "copyOf",
+                    "(Ljava/util/List;)Leucalyptus/PersistentList;");
+            return REFERENCE;
+        } else if (node instanceof Node.Add && ((Node.Add) node).arguments.length == 2) {
+            Node[] arguments = ((Node.Add) node).arguments;
+            return compileArithmetic(arguments, IADD, "add", direct);
+        } else if (node instanceof Node.Sub) {
+            return compileArithmetic(((Node.Sub) node).arguments, ISUB, "sub", direct);
+        } else if (node instanceof Node.Mult) {
+            return compileArithmetic(((Node.Mult) node).arguments, IMUL, "mult", direct);
+        } else if (node instanceof Node.LessThan) {
+            Node.LessThan lessThan = (Node.LessThan) node;
+            return compileComparison(lessThan.first, lessThan.second, IF_ICMPGE, "lessThan", direct);
+        } else if (node instanceof Node.Eq) {
+            Node.Eq eq = (Node.Eq) node;
+            return compileComparison(eq.first, eq.second, IF_ICMPNE, "eq", direct);
+        } else if (node instanceof Node.And) {
+            return compileLogical(((Node.And) node).arguments, true, direct);
+        } else if (node instanceof Node.Or) {
+            return compileLogical(((Node.Or) node).arguments, false, direct);
+        } else if (node instanceof Node.Len) {
+            compileReference(((Node.Len) node).value, direct);
+            code.invoke(INVOKESTATIC, OPERATIONS, "len", "(" + OBJECT + ")" + OBJECT);
+            return REFERENCE;
+        } else if (node instanceof Node.Get) {
+            Node.Get get = (Node.Get) node;
+            loadVariable(get.slot, get.variableName);
+            code.invoke(INVOKESTATIC, "eucalyptus/Node$Get", "container", "(" + CONTEXT + "I" + STRING + ")" + OBJECT);
+            compileReference(get.key, direct);
+            code.ldcString(get.variableName);
+            code.invoke(INVOKESTATIC, "eucalyptus/Node$Get", "lookup", "(" + OBJECT + OBJECT + STRING + ")" + OBJECT);
+            return REFERENCE;
+        } else if (node instanceof Node.Print) {
+            for (Node argument : ((Node.Print) node).arguments) {
+                compileReference(argument, direct);
+                code.invoke(INVOKESTATIC, SELF, "print", "(" + OBJECT + ")V");
+            }
+            return VOID;
+        } else if (node instanceof Node.Def) {
+            Node.Def def = (Node.Def) node;
+            if (def.constant) {
+                loadVariable(def.slot, def.name);
+                code.invoke(INVOKESTATIC, SELF, "checkConstant", "(" + CONTEXT + "I" + STRING + ")V");
+            }
+            loadVariable(def.slot, def.name);
+            compileReference(def.value, direct);
+            code.invoke(INVOKESTATIC, SELF, "define", "(" + CONTEXT + "I" + STRING + OBJECT + ")V");
+            return VOID;
+        } else if (node instanceof Node.Inc) {
+            compileInc((Node.Inc) node, direct);
+            return VOID;
+        } else if (node instanceof Node.If) {
+            return compileIf((Node.If) node, direct);
+        } else if (node instanceof Node.While) {
+            return compileWhile((Node.While) node);
+        } else if (node instanceof Node.Call && ((Node.Call) node).tailOf == null) {
+            return compileCall((Node.Call) node, direct);
+        } else if (node instanceof Node.Invariant) {
+            return compile(((Node.Invariant) node).expression, direct);
+        }
+        // anything else runs through the interpreter, which only caches invariants in its own loops
+        loadConstant(Optimizer.withoutInvariants(node));
+        code.type(CHECKCAST, NODE);
+        loadContext();
+        code.invoke(INVOKEVIRTUAL, NODE, "execute", "(" + CONTEXT + ")" + OBJECT);
+        return REFERENCE;
+    }
+
+    private int compileConstant(Object value) {
+        if (value == null) {
+            return VOID;
+        } else if (value instanceof Integer) {
+            code.iconst((int) value);
+            return INT;
+        } else if (value instanceof Boolean) {
+            code.iconst((boolean) value ? 1 : 0);
+            return BOOLEAN;
+        } else if (value instanceof String) {
+            code.ldcString((String) value);
+            return REFERENCE;
+        }
+        loadConstant(value);
+        return REFERENCE;
+    }
+
+    private void compileReference(Node node, boolean direct) {
+        box(compile(node, direct));
+    }
+
+    private int compileArithmetic(Node[] arguments, int intOpcode, String operation, boolean direct) {
+        int type = compileOperand(arguments[0], direct);
+        for (int i = 1; i < arguments.length; i++) {
+            int next = compile(arguments[i], direct);
+            if (type == INT && next == INT) {
+                code.op(intOpcode, -1);
+                continue;
+            }
+            boxBoth(type, next);
+            code.invoke(INVOKESTATIC, OPERATIONS, operation, "(" + OBJECT + OBJECT + ")" + OBJECT);
+            type = REFERENCE;
+        }
+        return type;
+    }
+
+    private int compileComparison(Node first, Node second, int intJump, String operation, boolean direct) {
+        int firstType = compileOperand(first, direct);
+        int secondType = compile(second, direct);
+        if (firstType == secondType && (firstType == INT || (firstType == BOOLEAN && intJump == IF_ICMPNE))) {
+            ClassFileWriter.Label isFalse = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            code.jump(intJump, isFalse);
+            code.iconst(1);
+            code.jump(GOTO, end);
+            code.mark(isFalse);
+            code.iconst(0);
+            code.mark(end);
+            return BOOLEAN;
+        }
+        boxBoth(firstType, secondType);
+        code.invoke(INVOKESTATIC, OPERATIONS, operation, "(" + OBJECT + OBJECT + ")Z");
+        return BOOLEAN;
+    }
+
+    // Compile the left operand of a binary operation, which always leaves a value
+    private int compileOperand(Node node, boolean direct) {
+        int type = compile(node, direct);
+        if (type == VOID) {
+            box(type);
+            return REFERENCE;
+        }
+        return type;
+    }
+
+    // Box the two operands on top of the stack
+    private void boxBoth(int firstType, int secondType) {
+        box(secondType);
+        if (firstType != REFERENCE) {
+            code.op(SWAP, 0);
+            box(firstType);
+            code.op(SWAP, 0);
+        }
+    }
+
+    private int compileLogical(Node[] arguments, boolean isAnd, boolean direct) {
+        ClassFileWriter.Label decided = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        for (Node argument : arguments) {
+            compileTruthy(argument, direct);
+            code.jump(isAnd ? IFEQ : IFNE, decided);
+        }
+        code.iconst(isAnd ? 1 : 0);
+        code.jump(GOTO, end);
+        code.mark(decided);
+        code.iconst(isAnd ? 0 : 1);
+        code.mark(end);
+        return BOOLEAN;
+    }
+
+    // Leave an int that is non-zero when node's value is truthy
+    private void compileTruthy(Node node, boolean direct) {
+        int type = compile(node, direct);
+        if (type == VOID) {
+            code.iconst(0);
+        } else if (type == REFERENCE) {
+            code.invoke(INVOKESTATIC, OPERATIONS, "isTruthy", "(" + OBJECT + ")Z");
+        }
+    }
+
+    private void compileInc(Node.Inc inc, boolean direct) {
+        loadVariable(inc.variable.slot, inc.variableName);
+        loadVariable(inc.variable.slot, inc.variableName);
+        code.invoke(INVOKESTATIC, SELF, "readInt", "(" + CONTEXT + "I" + STRING + ")I");
+        if (inc.amount instanceof Node.Constant && ((Node.Constant) inc.amount).value instanceof Integer) {
+            code.iconst((int) ((Node.Constant) inc.amount).value);
+        } else {
+            // unbox the way the interpreter does so failures carry the same message
+            loadConstant(Optimizer.withoutInvariants(inc.amount));
+            code.type(CHECKCAST, NODE);
+            loadContext();
+            code.invoke(INVOKEVIRTUAL, NODE, "execute", "(" + CONTEXT + ")" + OBJECT);
+            code.type(CHECKCAST, "java/lang/Integer");
+            code.invoke(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+        }
+        code.op(IADD, -1);
+        box(INT);
+        code.invoke(INVOKESTATIC, SELF, "define", "(" + CONTEXT + "I" + STRING + OBJECT + ")V");
+    }
+
+    private int compileIf(Node.If node, boolean direct) {
+        ClassFileWriter.Label otherwise = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        compileTruthy(node.condition, direct);
+        code.jump(IFEQ, otherwise);
+        compileReference(node.then, direct);
+        code.jump(GOTO, end);
+        code.mark(otherwise);
+        if (node.otherwise != null) {
+            compileReference(node.otherwise, direct);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.mark(end);
+        return REFERENCE;
+    }
+
+    private int compileWhile(Node.While node) {
+        int result = code.newLocal();
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label exit = new ClassFileWriter.Label();
+        ClassFileWriter.Label done = new ClassFileWriter.Label();
+        loadContext();
+        code.invoke(INVOKESTATIC, SELF, "enterScope", "(" + CONTEXT + ")V");
+        code.mark(loop);
+        int type = compile(node.condition, false);
+        if (type != BOOLEAN) {
+            // the interpreter casts the condition, keep its exact failure
+            box(type);
+            code.type(CHECKCAST, "java/lang/Boolean");
+            code.invoke(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z");
+        }
+        code.jump(IFEQ, exit);
+        for (Node statement : node.statements) {
+            int statementType = compile(statement, false);
+            if (statementType == VOID) {
+                continue;
+            }
+            box(statementType);
+            code.store(ASTORE, result);
+            code.load(ALOAD, result);
+            code.jump(IFNONNULL, done);
+        }
+        code.jump(GOTO, loop);
+        code.mark(exit);
+        code.op(ACONST_NULL, 1);
+        code.store(ASTORE, result);
+        code.mark(done);
+        loadContext();
+        code.invoke(INVOKESTATIC, SELF, "exitScope", "(" + CONTEXT + ")V");
+        code.load(ALOAD, result);
+        return REFERENCE;
+    }
+
+    private int compileCall(Node.Call call, boolean direct) {
+        int function = code.newLocal();
+        loadConstant(call);
+        code.type(CHECKCAST, NODE + "$Call");
+        loadContext();
+        code.invoke(INVOKEVIRTUAL, NODE + "$Call", "begin", "(" + CONTEXT + ")Leucalyptus/Function;");
+        code.store(ASTORE, function);
+        for (int i = 0; i < call.arguments.length; i++) {
+            loadContext();
+            code.load(ALOAD, function);
+            code.iconst(i);
+            // later arguments are evaluated after earlier parameters were bound in the callee's scope
+            compileReference(call.arguments[i], direct && i == 0);
+            code.invoke(INVOKESTATIC, SELF, "bind", "(" + CONTEXT + "Leucalyptus/Function;I" + OBJECT + ")V");
+        }
+        loadContext();
+        code.load(ALOAD, function);
+        code.ldcString(call.name);
+        code.invoke(INVOKESTATIC, NODE + "$Call", "finish",
+                "(" + CONTEXT + "Leucalyptus/Function;" + STRING + ")" + OBJECT);
+        return REFERENCE;
+    }
+
+    private void box(int type) {
+        if (type == INT) {
+            code.invoke(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+        } else if (type == BOOLEAN) {
+            code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        } else if (type == VOID) {
+            code.op(ACONST_NULL, 1);
+        }
+    }
+
+    private void loadContext() {
+        code.load(ALOAD, CONTEXT_LOCAL);
+    }
+
+    // Arguments shared by the helpers that access a variable: context, slot and name
+    private void loadVariable(int slot, String name) {
+        loadContext();
+        code.iconst(slot);
+        code.ldcString(name);
+    }
+
+    private void loadConstant(Object value) {
+        Integer index = constantIndices.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(value, index);
+        }
+        code.load(ALOAD, CONSTANTS_LOCAL);
+        code.iconst(index);
+        code.op(AALOAD, -1);
+    }
+
+    // Runtime support called from generated code
+
+    static Object deopt() {
+        return Body.DEOPT;
+    }
+
+    static Object lookup(Context context, int slot) {
+        return context.env.getVariable(slot);
+    }
+
+    static Object read(Context context, int slot, String name) {
+        Object value = context.env.getVariable(slot);
+        if (value == null) {
+            throw new RuntimeException("Variable '" + name + "' is not defined");
+        }
+        return value;
+    }
+
+    static int readInt(Context context, int slot, String name) {
+        return (int) read(context, slot, name);
+    }
+
+    static void addItem(List<Object> list, Object item) {
+        if (item != null) {
+            list.add(item);
+        }
+    }
+
+    static void print(Object value) {
+        if (value != null) {
+            Operations.print(value);
+        }
+    }
+
+    static void checkConstant(Context context, int slot, String name) {
+        if (context.env.hasVariable(slot)) {
+            throw new RuntimeException("Cannot reassign constant Variable '" + name + "'");
+        }
+    }
+
+    static void define(Context context, int slot, String name, Object value) {
+        context.env.setVariable(slot, name, value);
+    }
+
+    static void bind(Context context, Function function, int index, Object value) {
+        context.env.setVariable(function.getParameterSlots()[index], function.getParameterNames()[index], value);
+    }
+
+    static void enterScope(Context context) {
+        context.env.enterScope();
+    }
+
+    static void exitScope(Context context) {
+        context.env.exitScope();
+    }
+}
@@ -0,0 +1,265 @@
+package eucalyptus;
+
+import java.util.Arrays;
+
+public class Lexer {
+    // token kinds
+    public static final byte WORD = 0;
+    public static final byte INTEGER = 1;
+    public static final byte DOUBLE = 2;
+    public static final byte TRUE = 3;
+    public static final byte FALSE = 4;
+    public static final byte NULL = 5;
+    public static final byte STRING = 6;
+    public static final byte LEFT_PAREN = 7;
+    public static final byte RIGHT_PAREN = 8;
+    public static final byte COMMA = 9;
+    public static final byte LEFT_BRACKET = 10;
+    public static final byte RIGHT_BRACKET = 11;
+    public static final byte COLON = 12;
+    public static final byte LEFT_BRACE = 13;
+    public static final byte RIGHT_BRACE = 14;
+    public static final byte END = 15;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final char[] input;
+    private final int from;
+    private final int to;
+
+    // tokens are stored column-wise to avoid allocating an object per token
+    private byte[] kinds;
+    private int[] starts;
+    private int[] ends;
+    private long[] values;
+    private int count;
+
+    public Lexer(char[] input) {
+        this(input, 0, input.length);
+    }
+
+    public Lexer(char[] input, int from, int to) {
+        this.input = input;
+        this.from = from;
+        this.to = to;
+        int capacity = Math.max(INITIAL_CAPACITY, (to - from) / 4);
+        kinds = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        values = new long[capacity];
+    }
+
+    public Lexer tokenize() {
+        int tokenStart = -1;
+
+        for (int i = from; i < to; i++) {
+            char c = input[i];
+
+            // Handle string literals
+            if (c == '"' || c == '\'') {
+                if (tokenStart >= 0) {
+                    addWord(tokenStart, i);
+                    tokenStart = -1;
+                }
+                int end = i + 1;
+                while (end < to && input[end] != c) {
+                    end++;
+                }
+                if (end == to) {
+                    throw new RuntimeException("Unterminated string literal; expected closing " + c);
+                }
+                add(STRING, i, end + 1, 0);
+                i = end;
+                continue;
+            }
+
+            byte kind = punctuation(c);
+            if (kind != END) {
+                if (tokenStart >= 0) {
+                    addWord(tokenStart, i);
+                    tokenStart = -1;
+                }
+                add(kind, i, i + 1, 0);
+            } else if (Character.isWhitespace(c)) {
+                if (tokenStart >= 0) {
+                    addWord(tokenStart, i);
+                    tokenStart = -1;
+                }
+            } else if (tokenStart < 0) {
+                tokenStart = i;
+            }
+        }
+
+        // Add any remaining token at the end
+        if (tokenStart >= 0) {
+            addWord(tokenStart, to);
+        }
+
+        return this;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public byte kind(int token) {
+        return token < count ? kinds[token] : END;
+    }
+
+    public int start(int token) {
+        return starts[token];
+    }
+
+    public int end(int token) {
+        return ends[token];
+    }
+
+    public int intValue(int token) {
+        return (int) values[token];
+    }
+
+    public double doubleValue(int token) {
+        return Double.longBitsToDouble(values[token]);
+    }
+
+    // Raw source text of a token, only materialized for names and error messages
+    public String text(int token) {
+        return new String(input, starts[token], ends[token] - starts[token]);
+    }
+
+    // Contents of a string literal without its quotes
+    public String stringValue(int token) {
+        return new String(input, starts[token] + 1, ends[token] - starts[token] - 2);
+    }
+
+    private static byte punctuation(char c) {
+        switch (c) {
+            case '(':
+                return LEFT_PAREN;
+            case ')':
+                return RIGHT_PAREN;
+            case ',':
+                return COMMA;
+            case '[':
+                return LEFT_BRACKET;
+            case ']':
+                return RIGHT_BRACKET;
+            case ':':
+                return COLON;
+            case '{':
+                return LEFT_BRACE;
+            case '}':
+                return RIGHT_BRACE;
+            default:
+                return END;
+        }
+    }
+
+    // Classify a bare word and decode its value up front
+    private void addWord(int start, int end) {
+        if (matches(start, end, "true")) {
+            add(TRUE, start, end, 0);
+            return;
+        }
+        if (matches(start, end, "false")) {
+            add(FALSE, start, end, 0);
+            return;
+        }
+        if (matches(start, end, "null")) {
+            add(NULL, start, end, 0);
+            return;
+        }
+
+        boolean hasDot = false;
+        for (int i = start; i < end; i++) {
+            if (input[i] == '.') {
+                hasDot = true;
+                break;
+            }
+        }
+
+        if (hasDot) {
+            try {
+                double value = Double.parseDouble(new String(input, start, end - start));
+                add(DOUBLE, start, end, Double.doubleToRawLongBits(value));
+            } catch (NumberFormatException e) {
+                add(WORD, start, end, 0);
+            }
+            return;
+        }
+
+        long value = parseInt(start, end);
+        if (value == Long.MIN_VALUE) {
+            add(WORD, start, end, 0);
+        } else {
+            add(INTEGER, start, end, value);
+        }
+    }
+
+    // Same grammar as Integer.parseInt; returns Long.MIN_VALUE if the word is not an int
+    private long parseInt(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        char first = input[i];
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (i == end) {
+                return Long.MIN_VALUE;
+            }
+        }
+
+        long result = 0;
+        for (; i < end; i++) {
+            char c = input[i];
+            if (c >= '0' && c <= '9') {
+                result = result * 10 + (c - '0');
+                if (result > (long) Integer.MAX_VALUE + 1) {
+                    return Long.MIN_VALUE;
+                }
+            } else if (c < 128) {
+                return Long.MIN_VALUE;
+            } else {
+                // non-ASCII digits are rare enough to defer to the JDK
+                try {
+                    return Integer.parseInt(new String(input, start, end - start));
+                } catch (NumberFormatException e) {
+                    return Long.MIN_VALUE;
+                }
+            }
+        }
+
+        result = negative ? -result : result;
+        if (result > Integer.MAX_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        return result;
+    }
+
+    private boolean matches(int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (input[start + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(byte kind, int start, int end, long value) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        kinds[count] = kind;
+        starts[count] = start;
+        ends[count] = end;
+        values[count] = value;
+        count++;
+    }
+}
@@ -0,0 +1,206 @@
+package eucalyptus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Result cache of one pure Function, keyed by its argument values and evicting the least
+// recently used entry once it holds Memo.size results.
+//
+// A Function is pure when its result depends only on its arguments: it never prints, reads
+// only its own parameters and variables it defined earlier, defines no constants or
+// Functions, and calls only pure Functions. Every def or inc in a body writes the body's own
+// scope, so those stay allowed. Which Function a name calls is resolved when the analysis
+// runs; Environment takes a new function epoch whenever a binding to a Function changes, and
+// every cache is cleared and analyzed again after that. Epochs come from one counter, so an
+// Environment forked for another thread never matches one a cache saw elsewhere.
+final class Memo {
+    static boolean enabled = false;
+    static int size = 1000;
+    static boolean statistics = false;
+
+    // the Memos of the running program, for printStatistics; only kept while statistics are
+    // on, and emptied when they are printed at the end of each run, so Functions that were
+    // redefined or are gone do not keep their results alive
+    private static final List<Memo> memos = new ArrayList<>();
+
+    private final String name;
+    private final Map<List<Object>, Object> results;
+    private long hits;
+    private long misses;
+
+    Memo(String name) {
+        this.name = name;
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                return size() > size;
+            }
+        };
+        if (statistics) {
+            synchronized (memos) {
+                memos.add(this);
+            }
+        }
+    }
+
+    synchronized Object get(List<Object> arguments) {
+        Object value = results.get(arguments);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    synchronized void put(List<Object> arguments, Object value) {
+        if (value != null) {
+            results.put(arguments, value);
+        }
+    }
+
+    synchronized void clear() {
+        results.clear();
+    }
+
+    // Totals per Function name, since every run of a defFunction makes a new Memo, then forget
+    // the Memos of this run
+    static void printStatistics() {
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        synchronized (memos) {
+            for (Memo memo : memos) {
+                synchronized (memo) {
+                    long[] total = totals.computeIfAbsent(memo.name, name -> new long[3]);
+                    total[0] += memo.hits;
+                    total[1] += memo.misses;
+                    total[2] += memo.results.size();
+                }
+            }
+            memos.clear();
+        }
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            long[] counts = total.getValue();
+            System.out.println("Memo " + total.getKey() + ": " + counts[0] + " hits, " + counts[1] + " misses, "
+                    + counts[2] + " entries (limit " + size + ")");
+        }
+    }
+
+    static boolean isPure(Function function, Environment env) {
+        return isPure(function, env, new HashSet<>());
+    }
+
+    private static boolean isPure(Function function, Environment env, Set<Function> visiting) {
+        if (!visiting.add(function)) {
+            // recursion: pure if the rest of the cycle is
+            return true;
+        }
+        Set<String> bound = new HashSet<>(Arrays.asList(function.getParameterNames()));
+        return isPure(function.getBody(), bound, env, visiting);
+    }
+
+    // Statements run in order, so a name defined by one is bound for the ones after it
+    private static boolean isPure(Node[] statements, Set<String> bound, Environment env, Set<Function> visiting) {
+        for (Node statement : statements) {
+            if (!isPure(statement, bound, env, visiting)) {
+                return false;
+            }
+            if (statement instanceof Node.Def) {
+                bound.add(((Node.Def) statement).name);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPure(Node node, Set<String> bound, Environment env, Set<Function> visiting) {
+        if (node instanceof Node.Constant || node instanceof Node.Failure) {
+            return true;
+        } else if (node instanceof Node.Read) {
+            return bound.contains(((Node.Read) node).name);
+        } else if (node instanceof Node.Print || node instanceof Node.DefFunction) {
+            return false;
+        } else if (node instanceof Node.Def) {
+            Node.Def def = (Node.Def) node;
+            // a constant's definition fails if the name is bound anywhere up the scopes
+            return !def.constant && isPure(def.value, bound, env, visiting);
+        } else if (node instanceof Node.Inc) {
+            Node.Inc inc = (Node.Inc) node;
+            return bound.contains(inc.variableName) && isPure(inc.amount, bound, env, visiting);
+        } else if (node instanceof Node.Get) {
+            Node.Get get = (Node.Get) node;
+            return bound.contains(get.variableName) && isPure(get.key, bound, env, visiting);
+        } else if (node instanceof Node.Len) {
+            return isPure(((Node.Len) node).value, bound, env, visiting);
+        } else if (node instanceof Node.Invariant) {
+            return isPure(((Node.Invariant) node).expression, bound, env, visiting);
+        } else if (node instanceof Node.Eq) {
+            Node.Eq eq = (Node.Eq) node;
+            return isPure(eq.first, bound, env, visiting) && isPure(eq.second, bound, env, visiting);
+        } else if (node instanceof Node.LessThan) {
+            Node.LessThan lessThan = (Node.LessThan) node;
+            return isPure(lessThan.first, bound, env, visiting) && isPure(lessThan.second, bound, env, visiting);
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            return isPure(ifNode.condition, bound, env, visiting) && isPure(ifNode.then, bound, env, visiting)
+                    && (ifNode.otherwise == null || isPure(ifNode.otherwise, bound, env, visiting));
+        } else if (node instanceof Node.While) {
+            Node.While whileNode = (Node.While) node;
+            Set<String> loopBound = new HashSet<>(bound);
+            return isPure(whileNode.condition, loopBound, env, visiting)
+                    && isPure(whileNode.statements, loopBound, env, visiting);
+        } else if (node instanceof Node.ForEach) {
+            Node.ForEach forEach = (Node.ForEach) node;
+            if (forEach.list != null ? !isPure(forEach.list, bound, env, visiting)
+                    : !bound.contains(forEach.listVariable)) {
+                return false;
+            }
+            Set<String> loopBound = new HashSet<>(bound);
+            loopBound.add(forEach.variableName);
+            return isPure(forEach.statements, loopBound, env, visiting);
+        } else if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            Object callee = env.getVariable(call.slot);
+            if (bound.contains(call.name) || !(callee instanceof Function)) {
+                return false;
+            }
+            for (Node argument : call.arguments) {
+                if (!isPure(argument, bound, env, visiting)) {
+                    return false;
+                }
+            }
+            Function function = (Function) callee;
+            return function.getParameterNames() == null || isPure(function, env, visiting);
+        }
+        Node[] arguments = arguments(node);
+        if (arguments == null) {
+            return false;
+        }
+        for (Node argument : arguments) {
+            if (!isPure(argument, bound, env, visiting)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Node[] arguments(Node node) {
+        if (node instanceof Node.ListLiteral) {
+            return ((Node.ListLiteral) node).items;
+        } else if (node instanceof Node.Add) {
+            return ((Node.Add) node).arguments;
+        } else if (node instanceof Node.Sub) {
+            return ((Node.Sub) node).arguments;
+        } else if (node instanceof Node.Mult) {
+            return ((Node.Mult) node).arguments;
+        } else if (node instanceof Node.And) {
+            return ((Node.And) node).arguments;
+        } else if (node instanceof Node.Or) {
+            return ((Node.Or) node).arguments;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,1112 @@
+package eucalyptus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Executable form of a program. Compiler binds every FunctionCall to one of these
+// once, so execution no longer dispatches on names or re-validates arguments.
+abstract class Node {
+    abstract Object execute(Context context);
+
+    // Value of this node as an unboxed int. Arithmetic nodes override it to work on ints
+    // without boxing; a value that is not an Integer comes back as UnexpectedResult.
+    int executeInt(Context context) throws UnexpectedResult {
+        Object value = execute(context);
+        if (value instanceof Integer) {
+            return (int) value;
+        }
+        throw new UnexpectedResult(value);
+    }
+
+    // The value of a node that was not an Integer. Nodes that hit it finish the operation
+    // with this value on the generic path and stop trying executeInt from then on.
+    static final class UnexpectedResult extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    // Run statements in order until one produces a value
+    static Object executeBody(Node[] statements, Context context) {
+        for (Node statement : statements) {
+            Object value = statement.execute(context);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    static final class Constant extends Node {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Context context) {
+            return value;
+        }
+
+        @Override
+        int executeInt(Context context) throws UnexpectedResult {
+            if (value instanceof Integer) {
+                return (int) value;
+            }
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    // An error found while compiling, raised only when the call would have run
+    static final class Failure extends Node {
+        final String message;
+
+        Failure(String message) {
+            this.message = message;
+        }
+
+        @Override
+        Object execute(Context context) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    static final class ListLiteral extends Node {
+        final Node[] items;
+
+        ListLiteral(Node[] items) {
+            this.items = items;
+        }
+
+        @Override
+        Object execute(Context context) {
+            Object[] values = new Object[items.length];
+            int count = 0;
+            for (Node item : items) {
+                Object value = item.execute(context);
+                if (value != null) {
+                    values[count++] = value;
+                }
+            }
+            return PersistentList.of(count == values.length ? values : Arrays.copyOf(values, count));
+        }
+    }
+
+    static final class Read extends Node {
+        final String name;
+        final int slot;
+
+        Read(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Context context) {
+            Object value = context.env.getVariable(slot);
+            if (value == null) {
+                throw new RuntimeException("Variable '" + name + "' is not defined");
+            }
+            return value;
+        }
+
+        @Override
+        int executeInt(Context context) throws UnexpectedResult {
+            if (context.env.isInt(slot)) {
+                return context.env.getInt(slot);
+            }
+            return super.executeInt(context);
+        }
+    }
+
+    static final class Add extends Node {
+        final Node[] arguments;
+        // cleared once an argument was not an Integer
+        private boolean ints = true;
+
+        Add(Node[] arguments) {
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Context context) {
+            if (ints) {
+                try {
+                    return Operations.box(executeInt(context));
+                } catch (UnexpectedResult e) {
+                    return e.value;
+                }
+            }
+            return add(context, arguments[0].execute(context), 1);
+        }
+
+        @Override
+        int executeInt(Context context) throws UnexpectedResult {
+            if (!ints) {
+                return super.executeInt(context);
+            }
+            int result;
+            try {
+                result = arguments[0].executeInt(context);
+            } catch (UnexpectedResult e) {
+                ints = false;
+                throw new UnexpectedResult(add(context, e.value, 1));
+            }
+            for (int i = 1; i < arguments.length; i++) {
+                try {
+                    result += arguments[i].executeInt(context);
+                } catch (UnexpectedResult e) {
+                    ints = false;
+                    throw new UnexpectedResult(add(context, Operations.add(Operations.box(result), e.value), i + 1));
+                }
+            }
+            return result;
+        }
+
+        // Add the arguments from index start on to result
+        private Object add(Context context, Object result, int start) {
+            for (int i = start; i < arguments.length; i++) {
+                Object next = arguments[i].execute(context);
+                if (result instanceof Map && Operations.isString(next) && i + 1 < arguments.length) {
+                    result = Operations.put(result, next.toString(), arguments[++i].execute(context));
+                } else {
+                    result = Operations.add(result, next);
+                }
+            }
+            return result;
+        }
+    }
+
+    static final class And extends Node {
+        final Node[] arguments;
+
+        And(Node[] arguments) {
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Context context) {
+            for (Node argument : arguments) {
+                if (!Operations.isTruthy(argument.execute(context))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // await(task) and awaitAll(tasks): wait for spawned Tasks and give back what they returned
+    static final class Await extends Node {
+        final Node task;
+        // awaitAll takes a List of Tasks and evaluates to the List of their values, without nulls
+        final boolean all;
+
+        Await(Node task, boolean all) {
+            this.task = task;
+            this.all = all;
+        }
+
+        @Override
+        Object execute(Context context) {
+            Object value = task.execute(context);
+            if (!all) {
+                if (!(value instanceof Task)) {
+                    throw new RuntimeException("Argument of 'await' function must be a Task");
+                }
+                return ((Task) value).await();
+            }
+            if (!(value instanceof List)) {
+                throw new RuntimeException("Argument of 'awaitAll' function must be a List of Tasks");
+            }
+            List<Object> values = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                if (!(item instanceof Task)) {
+                    throw new RuntimeException("Argument of 'awaitAll' function must be a List of Tasks");
+                }
+                Object result = ((Task) item).await();
+                if (result != null) {
+                    values.add(result);
+                }
+            }
+            return PersistentList.copyOf(values);
+        }
+    }
+
+    static final class Def extends Node {
+        final String name;
+        final int slot;
+        final boolean constant;
+        final Node value;
+        // cleared once the value was not an Integer
+        private boolean ints = true;
+
+        Def(String name, int slot, boolean constant, Node value) {
+            this.name = name;
+            this.slot = slot;
+            this.constant = constant;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Context context) {
+            if (constant && context.env.hasVariable(slot)) {
+                throw new RuntimeException("Cannot reassign constant Variable '" + name + "'");
+            }
+            if (ints) {
+                try {
+                    context.env.setInt(slot, name, value.executeInt(context));
+                } catch (UnexpectedResult e) {
+                    ints = false;
+                    context.env.setVariable(slot, name, e.value);
+                }
+                return null;
+            }
+            context.env.setVariable(slot, name, value.execute(context));
+            return null;
+        }
+    }
+
+    static final class DefFunction extends Node {
+        final String name;
+        final List<Variable> parameters;
+        final List<FunctionCall> statements;
+        final int slot;
+        final String[] parameterNames;
+        // null exactly when parameterNames is
+        final int[] parameterSlots;
+        final Node[] body;
+
+        DefFunction(String name, int slot, List<Variable> parameters, List<FunctionCall> statements,
+                String[] parameterNames, int[] parameterSlots, Node[] body) {
+            this.name = name;
+            this.slot = slot;
+            this.parameters = parameters;
+            this.statements = statements;
+            this.parameterNames = parameterNames;
+            this.parameterSlots = parameterSlots;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Context context) {
+            context.env.setVariable(slot, name,
+                    new Function(name, parameters, statements, parameterNames, parameterSlots, body, null));
+            return null;
+        }
+    }
+
+    static final class Eq extends Node {
+        final Node first;
+        final Node second;
+
+        Eq(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        Object execute(Context context) {
+            Object firstValue = first.execute(context);
+            return Operations.eq(firstValue, second.execute(context));
+        }
+    }
+
+    static final class ForEach extends Node {
+        static final String LIST_ERROR_MESSAGE = listError("forEach");
+
+        final String variableName;
+        final int variableSlot;
+        final Node list;
+        final String listVariable;
+        final int listSlot;
+        final String deferredError;
+        final Node[] statements;
+        // range of Context.invariants used by the Invariants in statements
+        final int firstInvariant;
+        final int invariantCount;
+
+        // Exactly one of list (a list literal) and listVariable is set. deferredError is
+        // raised after the list is evaluated, matching the order the checks always ran in.
+        ForEach(String variableName, int variableSlot, Node list, String listVariable, int listSlot,
+                String deferredError, Node[] statements) {
+            this(variableName, variableSlot, list, listVariable, listSlot, deferredError, statements, 0, 0);
+        }
+
+        // listSlot is -1 when there is no listVariable
+        ForEach(String variableName, int variableSlot, Node list, String listVariable, int listSlot,
+                String deferredError, Node[] statements, int firstInvariant, int invariantCount) {
+            this.variableName = variableName;
+            this.variableSlot = variableSlot;
+            this.list = list;
+            this.listVariable = listVariable;
+            this.listSlot = listSlot;
+            this.deferredError = deferredError;
+            this.statements = statements;
+            this.firstInvariant = firstInvariant;
+            this.invariantCount = invariantCount;
+        }
+
+        static String listError(String function) {
+            return "Second argument of '" + function + "' function must be a List";
+        }
+
+        @Override
+        Object execute(Context context) {
+            List<Object> value = items(context, LIST_ERROR_MESSAGE);
+            if (invariantCount == 0) {
+                return loop(context, value);
+            }
+            Object[] saved = context.enterLoop(firstInvariant, invariantCount);
+            try {
+                return loop(context, value);
+            } finally {
+                context.exitLoop(firstInvariant, saved);
+            }
+        }
+
+        // The List the loop runs over, failing with listError when a variable holds something else
+        @SuppressWarnings("unchecked")
+        List<Object> items(Context context, String listError) {
+            Object value;
+            if (list != null) {
+                value = list.execute(context);
+            } else {
+                value = context.env.getVariable(listSlot);
+                if (value == null) {
+                    throw new RuntimeException("Variable '" + listVariable + "' is not defined");
+                }
+                if (!(value instanceof List)) {
+                    throw new RuntimeException(listError);
+                }
+            }
+            if (deferredError != null) {
+                throw new RuntimeException(deferredError);
+            }
+            return (List<Object>) value;
+        }
+
+        private Object loop(Context context, List<Object> value) {
+            Environment env = context.env;
+            env.enterScope();
+            if (value instanceof PersistentList && ((PersistentList) value).isInts()) {
+                // bind the items without boxing them
+                PersistentList ints = (PersistentList) value;
+                for (int i = 0; i < ints.size(); i++) {
+                    env.setInt(variableSlot, variableName, ints.getInt(i));
+                    Object result = executeBody(statements, context);
+                    if (result != null) {
+                        env.exitScope();
+                        return result;
+                    }
+                }
+                env.exitScope();
+                return null;
+            }
+            for (Object item : value) {
+                env.setVariable(variableSlot, variableName, item);
+                Object result = executeBody(statements, context);
+                if (result != null) {
+                    env.exitScope();
+                    return result;
+                }
+            }
+            env.exitScope();
+            return null;
+        }
+    }
+
+    static final class Get extends Node {
+        final String variableName;
+        final int slot;
+        final Node key;
+
+        Get(String variableName, int slot, Node key) {
+            this.variableName = variableName;
+            this.slot = slot;
+            this.key = key;
+        }
+
+        @Override
+        Object execute(Context context) {
+            return lookup(container(context, slot, variableName), key.execute(context), variableName);
+        }
+
+        @Override
+        int executeInt(Context context) throws UnexpectedResult {
+            Object container = container(context, slot, variableName);
+            Object index = key.execute(context);
+            if (container instanceof PersistentList && ((PersistentList) container).isInts()
+                    && index instanceof Integer) {
+                PersistentList list = (PersistentList) container;
+                int i = (int) index;
+                if (i < 0 || i >= list.size()) {
+                    throw new RuntimeException("Index out of bounds: " + i + " for List " + variableName);
+                }
+                return list.getInt(i);
+            }
+            Object value = lookup(container, index, variableName);
+            if (value instanceof Integer) {
+                return (int) value;
+            }
+            throw new UnexpectedResult(value);
+        }
+
+        // The Dict or List named by the first argument, checked before the key is evaluated
+        static Object container(Context context, int slot, String variableName) {
+            Object value = context.env.getVariable(slot);
+            if (value == null) {
+                throw new RuntimeException("Variable '" + variableName + "' is not defined");
+            }
+            if (!(value instanceof Map) && !(value instanceof List)) {
+                throw new RuntimeException("Variable '" + variableName + "' is not a Dict or List");
+            }
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Object lookup(Object container, Object key, String variableName) {
+            key = Rope.flatten(key);
+            if (container instanceof Map) {
+                if (!(key instanceof String)) {
+                    throw new RuntimeException("Second argument of 'get' function must be a String");
+                }
+                Map<String, Object> dict = (Map<String, Object>) container;
+                if (!dict.containsKey(key)) {
+                    throw new RuntimeException("Key '" + key + "' not found in Dict " + variableName);
+                }
+                return dict.get(key);
+            }
+            if (!(key instanceof Integer)) {
+                throw new RuntimeException("Second argument of 'get' function must be an Integer");
+            }
+            List<Object> list = (List<Object>) container;
+            int i = (int) key;
+            if (i < 0 || i >= list.size()) {
+                throw new RuntimeException("Index out of bounds: " + i + " for List " + variableName);
+            }
+            return list.get(i);
+        }
+    }
+
+    static final class If extends Node {
+        final Node condition;
+        final Node then;
+        final Node otherwise;
+
+        // otherwise is null when there is no else branch
+        If(Node condition, Node then, Node otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        Object execute(Context context) {
+            if (Operations.isTruthy(condition.execute(context))) {
+                return then.execute(context);
+            } else if (otherwise != null) {
+                return otherwise.execute(context);
+            }
+            return null;
+        }
+    }
+
+    static final class Inc extends Node {
+        final String variableName;
+        final Read variable;
+        final Node amount;
+
+        Inc(String variableName, int slot, Node amount) {
+            this.variableName = variableName;
+            this.variable = new Read(variableName, slot);
+            this.amount = amount;
+        }
+
+        @Override
+        Object execute(Context context) {
+            int value;
+            try {
+                value = variable.executeInt(context);
+            } catch (UnexpectedResult e) {
+                value = (int) e.value;
+            }
+            context.env.setInt(variable.slot, variableName, value + (int) amount.execute(context));
+            return null;
+        }
+    }
+
+    static final class Len extends Node {
+        final Node value;
+
+        Len(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Context context) {
+            return Operations.len(value.execute(context));
+        }
+    }
+
+    static final class LessThan extends Node {
+        final Node first;
+        final Node second;
+        // cleared once an operand was not an Integer
+        private boolean ints = true;
+
+        LessThan(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        Object execute(Context context) {
+            if (ints) {
+                int firstValue;
+                try {
+                    firstValue = first.executeInt(context);
+                } catch (UnexpectedResult e) {
+                    ints = false;
+                    return Operations.lessThan(e.value, second.execute(context));
+                }
+                try {
+                    return firstValue < second.executeInt(context);
+                } catch (UnexpectedResult e) {
+                    ints = false;
+                    return Operations.lessThan(Operations.box(firstValue), e.value);
+                }
+            }
+            Object firstValue = first.execute(context);
+            return Operations.lessThan(firstValue, second.execute(context));
+        }
+    }
+
+    static final class Mult extends Node {
+        final Node[] arguments;
+        // cleared once an argument was not an Integer
+        private boolean ints = true;
+
+        Mult(Node[] arguments) {
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Context context) {
+            if (ints) {
+                try {
+                    return Operations.box(executeInt(context));
+                } catch (UnexpectedResult e) {
+                    return e.value;
+                }
+            }
+            return mult(context, arguments[0].execute(context), 1);
+        }
+
+        @Override
+        int executeInt(Context context) throws UnexpectedResult {
+            if (!ints) {
+                return super.executeInt(context);
+            }
+            int result;
+            try {
+                result = arguments[0].executeInt(context);
+            } catch (UnexpectedResult e) {
+                ints = false;
+                throw new UnexpectedResult(mult(context, e.value, 1));
+            }
+            for (int i = 1; i < arguments.length; i++) {
+                try {
+                    result *= arguments[i].executeInt(context);
+                } catch (UnexpectedResult e) {
+                    ints = false;
+                    throw new UnexpectedResult(mult(context, Operations.mult(Operations.box(result), e.value), i + 1));
+                }
+            }
+            return result;
+        }
+
+        private Object mult(Context context, Object result, int start) {
+            for (int i = start; i < arguments.length; i++) {
+                result = Operations.mult(result, arguments[i].execute(context));
+            }
+            return result;
+        }
+    }
+
+    static final class Or extends Node {
+        final Node[] arguments;
+
+        Or(Node[] arguments) {
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Context context) {
+            for (Node argument : arguments) {
+                if (Operations.isTruthy(argument.execute(context))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // parallelForEach and parallelMap: loop runs its body once per item like forEach, but the
+    // items are split into tasks on the common ForkJoinPool. Each task binds into its own copy
+    // of the Environment, which a forEach body could not change anyway, since its writes go to
+    // the loop's scope. Output is held per item and printed in item order once all of them
+    // finished, and the first error or value in item order wins, as if they ran in sequence.
+    static final class Parallel extends Node {
+        final String name;
+        // parallelMap evaluates to the List of the items' values, without nulls
+        final boolean map;
+        final ForEach loop;
+        private final String listError;
+
+        Parallel(String name, boolean map, ForEach loop) {
+            this.name = name;
+            this.map = map;
+            this.loop = loop;
+            this.listError = ForEach.listError(name);
+        }
+
+        @Override
+        Object execute(Context context) {
+            Object[] items = loop.items(context, listError).toArray();
+            Batch batch = new Batch(this, context, items);
+            int tasks = ForkJoinPool.getCommonPoolParallelism() * 4;
+            new Items(batch, 0, items.length, Math.max(1, items.length / tasks)).invoke();
+
+            List<Object> values = map ? new ArrayList<>() : null;
+            for (int i = 0; i < items.length; i++) {
+                if (!batch.output[i].isEmpty()) {
+                    Operations.printAll(batch.output[i]);
+                }
+                if (batch.errors[i] != null) {
+                    throw batch.errors[i];
+                }
+                Object value = batch.values[i];
+                if (value != null) {
+                    if (!map) {
+                        return value;
+                    }
+                    values.add(value);
+                }
+            }
+            return map ? PersistentList.copyOf(values) : null;
+        }
+
+        // State shared by the tasks of one run, each writing only its own items' entries
+        private static final class Batch {
+            final Parallel parallel;
+            final Context parent;
+            final Object[] items;
+            final Object[] values;
+            final String[] output;
+            final RuntimeException[] errors;
+
+            Batch(Parallel parallel, Context parent, Object[] items) {
+                this.parallel = parallel;
+                this.parent = parent;
+                this.items = items;
+                this.values = new Object[items.length];
+                this.output = new String[items.length];
+                this.errors = new RuntimeException[items.length];
+            }
+        }
+
+        // Items from (inclusive) to to, split in halves down to grain items per task
+        private static final class Items extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final Batch batch;
+            private final int from;
+            private final int to;
+            private final int grain;
+
+            Items(Batch batch, int from, int to, int grain) {
+                this.batch = batch;
+                this.from = from;
+                this.to = to;
+                this.grain = grain;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > grain) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new Items(batch, from, middle, grain), new Items(batch, middle, to, grain));
+                } else if (from < to) {
+                    run();
+                }
+            }
+
+            private void run() {
+                ForEach loop = batch.parallel.loop;
+                Context context = new Context(new Environment(batch.parent.env));
+                context.line = batch.parent.line;
+                context.currentFunction = batch.parent.currentFunction;
+                context.stack = Profiler.fork(context, batch.parent.stack);
+                if (loop.invariantCount > 0) {
+                    context.enterLoop(loop.firstInvariant, loop.invariantCount);
+                }
+                Environment env = context.env;
+                // a task may run another one while it waits for its own subtasks, so the
+                // buffer of the item it was printing to is put back afterwards
+                Appendable outer = Operations.output.get();
+                try {
+                    for (int i = from; i < to; i++) {
+                        StringBuilder output = new StringBuilder();
+                        Operations.output.set(output);
+                        try {
+                            env.enterScope();
+                            env.setVariable(loop.variableSlot, loop.variableName, batch.items[i]);
+                            Object value = executeBody(loop.statements, context);
+                            env.exitScope();
+                            batch.values[i] = value;
+                            if (value != null && !batch.parallel.map) {
+                                // forEach stops at the first value
+                                return;
+                            }
+                        } catch (RuntimeException e) {
+                            // so do the items after an error
+                            batch.errors[i] = e;
+                            return;
+                        } finally {
+                            batch.output[i] = output.toString();
+                        }
+                    }
+                } finally {
+                    Operations.output.set(outer);
+                    Profiler.close(context.stack);
+                }
+            }
+        }
+    }
+
+    static final class Print extends Node {
+        final Node[] arguments;
+
+        Print(Node[] arguments) {
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Context context) {
+            for (Node argument : arguments) {
+                Object value = argument.execute(context);
+                if (value != null) {
+                    Operations.print(value);
+                }
+            }
+            return null;
+        }
+    }
+
+    // spawn(function, [arguments]): start a Task calling function with the arguments
+    static final class Spawn extends Node {
+        final Node function;
+        final Node arguments;
+
+        Spawn(Node function, Node arguments) {
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Context context) {
+            Object value = function.execute(context);
+            if (!(value instanceof Function)) {
+                throw new RuntimeException("First argument of 'spawn' function must be a Function");
+            }
+            Object list = arguments.execute(context);
+            if (!(list instanceof List)) {
+                throw new RuntimeException("Second argument of 'spawn' function must be a List");
+            }
+            return Task.spawn((Function) value, PersistentList.copyOf((List<?>) list), context);
+        }
+    }
+
+    static final class Sub extends Node {
+        final Node[] arguments;
+        // cleared once an argument was not an Integer
+        private boolean ints = true;
+
+        Sub(Node[] arguments) {
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Context context) {
+            if (ints) {
+                try {
+                    return Operations.box(executeInt(context));
+                } catch (UnexpectedResult e) {
+                    return e.value;
+                }
+            }
+            return sub(context, arguments[0].execute(context), 1);
+        }
+
+        @Override
+        int executeInt(Context context) throws UnexpectedResult {
+            if (!ints) {
+                return super.executeInt(context);
+            }
+            int result;
+            try {
+                result = arguments[0].executeInt(context);
+            } catch (UnexpectedResult e) {
+                ints = false;
+                throw new UnexpectedResult(sub(context, e.value, 1));
+            }
+            for (int i = 1; i < arguments.length; i++) {
+                try {
+                    result -= arguments[i].executeInt(context);
+                } catch (UnexpectedResult e) {
+                    ints = false;
+                    throw new UnexpectedResult(sub(context, Operations.sub(Operations.box(result), e.value), i + 1));
+                }
+            }
+            return result;
+        }
+
+        private Object sub(Context context, Object result, int start) {
+            for (int i = start; i < arguments.length; i++) {
+                result = Operations.sub(result, arguments[i].execute(context));
+            }
+            return result;
+        }
+    }
+
+    static final class While extends Node {
+        final Node condition;
+        final Node[] statements;
+        // range of Context.invariants used by the Invariants in condition and statements
+        final int firstInvariant;
+        final int invariantCount;
+
+        While(Node condition, Node[] statements) {
+            this(condition, statements, 0, 0);
+        }
+
+        While(Node condition, Node[] statements, int firstInvariant, int invariantCount) {
+            this.condition = condition;
+            this.statements = statements;
+            this.firstInvariant = firstInvariant;
+            this.invariantCount = invariantCount;
+        }
+
+        @Override
+        Object execute(Context context) {
+            if (invariantCount == 0) {
+                return loop(context);
+            }
+            Object[] saved = context.enterLoop(firstInvariant, invariantCount);
+            try {
+                return loop(context);
+            } finally {
+                context.exitLoop(firstInvariant, saved);
+            }
+        }
+
+        private Object loop(Context context) {
+            Environment env = context.env;
+            env.enterScope();
+            while ((boolean) condition.execute(context)) {
+                Object value = executeBody(statements, context);
+                if (value != null) {
+                    env.exitScope();
+                    return value;
+                }
+            }
+            env.exitScope();
+            return null;
+        }
+    }
+
+    // Expression that does not change while its loop runs, see Optimizer. It is evaluated
+    // the first time a run of the loop needs it and the value is reused for the rest of it.
+    static final class Invariant extends Node {
+        final int index;
+        final Node expression;
+
+        Invariant(int index, Node expression) {
+            this.index = index;
+            this.expression = expression;
+        }
+
+        @Override
+        Object execute(Context context) {
+            Object[] values = context.invariants;
+            Object value = values[index];
+            if (value == null) {
+                value = expression.execute(context);
+                values[index] = value;
+            }
+            return value;
+        }
+    }
+
+    // Call of a user-defined Function, resolved by name when it runs
+    static final class Call extends Node {
+        // Returned by a tail call that rebound the running function's parameters in place;
+        // Function.executeBody then runs the body again instead of recursing
+        static final Object TAIL_CALL = new Object();
+
+        final String name;
+        final int slot;
+        final Node[] arguments;
+        // body of the function this call is in tail position of, or null
+        final Node[] tailOf;
+        // cleared once an argument was not an Integer
+        private boolean ints = true;
+        // what this call last resolved to
+        private Target target;
+        // set by Checker when every Function this name can refer to takes these arguments
+        boolean verified;
+
+        // A resolved and checked callee. It stays valid while the Environment's function
+        // epoch is unchanged, since no name bound to a Function has been rebound since. No
+        // two Environments share an epoch, so it is not kept alive by holding on to its own.
+        private static final class Target {
+            final int epoch;
+            final Function function;
+
+            Target(int epoch, Function function) {
+                this.epoch = epoch;
+                this.function = function;
+            }
+        }
+
+        Call(String name, int slot, Node[] arguments) {
+            this(name, slot, arguments, null);
+        }
+
+        Call(String name, int slot, Node[] arguments, Node[] tailOf) {
+            this.name = name;
+            this.slot = slot;
+            this.arguments = arguments;
+            this.tailOf = tailOf;
+        }
+
+        @Override
+        Object execute(Context context) {
+            Function userFunction = lookup(context);
+            // A call to the running function as its final value can reuse its scope: the new
+            // bindings shadow exactly what a fresh scope on top of it would
+            boolean reuse = tailOf != null && userFunction.getBody() == tailOf;
+            if (!reuse) {
+                context.env.enterScope();
+            }
+            String[] parameters = userFunction.getParameterNames();
+            int[] parameterSlots = userFunction.getParameterSlots();
+            for (int i = 0; i < parameters.length; i++) {
+                if (ints) {
+                    try {
+                        context.env.setInt(parameterSlots[i], parameters[i], arguments[i].executeInt(context));
+                    } catch (UnexpectedResult e) {
+                        ints = false;
+                        context.env.setVariable(parameterSlots[i], parameters[i], e.value);
+                    }
+                } else {
+                    context.env.setVariable(parameterSlots[i], parameters[i], arguments[i].execute(context));
+                }
+            }
+            if (reuse) {
+                context.currentFunction = name;
+                if (context.stack != null) {
+                    context.stack.again(name);
+                }
+                return TAIL_CALL;
+            }
+            return finish(context, userFunction, name);
+        }
+
+        // Resolve and check the callee, then open the scope its arguments are bound in
+        Function begin(Context context) {
+            Function userFunction = lookup(context);
+            context.env.enterScope();
+            return userFunction;
+        }
+
+        private Function lookup(Context context) {
+            int epoch = context.env.functionEpoch;
+            Target cached = target;
+            if (cached != null && cached.epoch == epoch) {
+                return cached.function;
+            }
+            Function userFunction = resolve(context);
+            target = new Target(epoch, userFunction);
+            return userFunction;
+        }
+
+        private Function resolve(Context context) {
+            Object functionValue = context.env.getVariable(slot);
+            if (functionValue == null) {
+                throw new RuntimeException("Function '" + name + "' is not defined");
+            } else if (!(functionValue instanceof Function)) {
+                throw new RuntimeException("Cannot call Variable '" + name + "' as it is not a Function");
+            }
+            Function userFunction = (Function) functionValue;
+            if (verified) {
+                return userFunction;
+            }
+
+            int argumentCount = arguments.length;
+            int parameterCount = userFunction.getParameters().size();
+            if (parameterCount != argumentCount) {
+                throw new RuntimeException("Function '" + userFunction.getName() + "' expects " + parameterCount
+                        + " parameters, but got " + argumentCount);
+            }
+            if (userFunction.getParameterNames() == null) {
+                throw new RuntimeException("Parameters of Function '" + userFunction.getName() + "' must be Variables");
+            }
+            return userFunction;
+        }
+
+        // Run the body once the arguments are bound and close the scope begin opened
+        static Object finish(Context context, Function userFunction, String name) {
+            context.currentFunction = name;
+            Profiler.Stack stack = context.stack;
+            if (stack != null) {
+                stack.enter(name);
+            }
+            Events.Call event = Events.call();
+            Object value;
+            try {
+                value = userFunction.executeBody(context);
+            } catch (RuntimeException e) {
+                if (context.trace != null) {
+                    context.trace.add(name);
+                }
+                if (stack != null) {
+                    stack.exit();
+                }
+                if (event != null) {
+                    event.record(name, context);
+                }
+                throw e;
+            }
+            if (stack != null) {
+                stack.exit();
+            }
+            if (event != null) {
+                event.record(name, context);
+            }
+            context.currentFunction = null;
+            context.env.exitScope();
+            return value;
+        }
+    }
+}
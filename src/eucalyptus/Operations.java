@@ -0,0 +1,211 @@
+package eucalyptus;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+// Value semantics of the built-in functions, shared by every execution engine. add and sub
+// never change a List or Dict; they return a PersistentList or PersistentDict sharing
+// structure with the original.
+final class Operations {
+    private Operations() {
+    }
+
+    // Integers are 32-bit and wrap around on overflow; an Integer combined with a Double
+    // gives a Double. The fast paths in Node compute ints unboxed and box them only when a
+    // value is stored in a collection or returned from a Function.
+    private static final int BOX_CACHE_LOW = -1024;
+    private static final Integer[] BOX_CACHE = new Integer[32768 - BOX_CACHE_LOW];
+
+    // Integer.valueOf with a larger cache, for counters and indexes in loops
+    static Integer box(int value) {
+        if (value < BOX_CACHE_LOW || value >= BOX_CACHE_LOW + BOX_CACHE.length) {
+            return value;
+        }
+        Integer boxed = BOX_CACHE[value - BOX_CACHE_LOW];
+        if (boxed == null) {
+            boxed = value;
+            BOX_CACHE[value - BOX_CACHE_LOW] = boxed;
+        }
+        return boxed;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object add(Object result, Object next) {
+        if (result instanceof Integer && next instanceof Integer) {
+            return box((int) result + (int) next);
+        } else if (result instanceof Number && next instanceof Number) {
+            return ((Number) result).doubleValue() + ((Number) next).doubleValue();
+        } else if (isString(result) && isString(next)) {
+            return Rope.concat((CharSequence) result, (CharSequence) next);
+        } else if (result instanceof List && next instanceof List) {
+            Events.Copy event = Events.copy();
+            return Events.copied(event, "add",
+                    PersistentList.copyOf((List<Object>) result).appendAll((List<Object>) next));
+        } else if (result instanceof List) {
+            return PersistentList.copyOf((List<Object>) result).append(next);
+        } else if (result instanceof Map && next instanceof Map) {
+            Events.Copy event = Events.copy();
+            return Events.copied(event, "add",
+                    PersistentDict.copyOf((Map<String, Object>) result).withAll((Map<String, Object>) next));
+        }
+        String resultName = getLiteralName(result);
+        String nextName = getLiteralName(next);
+        throw new RuntimeException("Cannot add " + resultName + " and " + nextName);
+    }
+
+    // add(dict, key, value) form
+    @SuppressWarnings("unchecked")
+    static Object put(Object dict, String key, Object value) {
+        return PersistentDict.copyOf((Map<String, Object>) dict).with(key, Rope.flatten(value));
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object sub(Object result, Object next) {
+        if (result instanceof Integer && next instanceof Integer) {
+            return box((int) result - (int) next);
+        } else if (result instanceof Number && next instanceof Number) {
+            return ((Number) result).doubleValue() - ((Number) next).doubleValue();
+        } else if (isString(result) && isString(next)) {
+            return result.toString().replace(next.toString(), "");
+        } else if (result instanceof List && next instanceof List) {
+            Events.Copy event = Events.copy();
+            return Events.copied(event, "sub",
+                    PersistentList.copyOf((List<Object>) result).withoutAll((List<Object>) next));
+        } else if (result instanceof List) {
+            Events.Copy event = Events.copy();
+            PersistentList newResult = PersistentList.copyOf((List<Object>) result).without(Rope.flatten(next));
+            if (newResult == null) {
+                throw new RuntimeException("Item '" + next + "' not found in List " + result);
+            }
+            return Events.copied(event, "sub", newResult);
+        } else if (result instanceof Map && isString(next)) {
+            PersistentDict newResult = PersistentDict.copyOf((Map<String, Object>) result);
+            String key = next.toString();
+            if (newResult.get(key) == null) {
+                throw new RuntimeException("Key '" + next + "' not found in Dict " + result);
+            }
+            return newResult.without(key);
+        }
+        String resultName = getLiteralName(result);
+        String nextName = getLiteralName(next);
+        throw new RuntimeException("Cannot add " + resultName + " and " + nextName);
+    }
+
+    static Object mult(Object result, Object next) {
+        if (result instanceof Integer && next instanceof Integer) {
+            return box((int) result * (int) next);
+        } else if (result instanceof Number && next instanceof Number) {
+            return ((Number) result).doubleValue() * ((Number) next).doubleValue();
+        }
+        String resultName = getLiteralName(result);
+        String nextName = getLiteralName(next);
+        throw new RuntimeException("Cannot multiply " + resultName + " and " + nextName);
+    }
+
+    static boolean lessThan(Object first, Object second) {
+        if (first instanceof Integer && second instanceof Integer) {
+            return (int) first < (int) second;
+        } else if (first instanceof Number && second instanceof Number) {
+            return ((Number) first).doubleValue() < ((Number) second).doubleValue();
+        } else if (isString(first) && isString(second)) {
+            return first.toString().compareTo(second.toString()) < 0;
+        } else if (first instanceof List && second instanceof List) {
+            return ((List<?>) first).size() < ((List<?>) second).size();
+        }
+        String firstName = getLiteralName(first);
+        String secondName = getLiteralName(second);
+        throw new RuntimeException("Cannot compare " + firstName + " and " + secondName);
+    }
+
+    static boolean eq(Object first, Object second) {
+        if (first == null) {
+            return second == null;
+        }
+        return Rope.flatten(first).equals(Rope.flatten(second));
+    }
+
+    static Object len(Object value) {
+        if (isString(value)) {
+            return box(((CharSequence) value).length());
+        } else if (value instanceof List) {
+            return box(((List<?>) value).size());
+        } else if (value instanceof Map) {
+            return box(((Map<?, ?>) value).size());
+        }
+        throw new RuntimeException("'len' function expects a String, List, or Dict, got " + getLiteralName(value));
+    }
+
+    static String getLiteralName(Object literal) {
+        if (literal == null) {
+            return "null";
+        }
+        if (literal instanceof List) {
+            return "List";
+        } else if (literal instanceof Map) {
+            return "Dict";
+        } else if (literal instanceof Rope) {
+            return "String";
+        }
+        return literal.getClass().getSimpleName();
+    }
+
+    // Whether value is a String, possibly one still being built by add
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    static boolean isTruthy(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        } else if (isString(value)) {
+            return ((CharSequence) value).length() != 0;
+        } else if (value instanceof List) {
+            return !((List<?>) value).isEmpty();
+        } else if (value instanceof Map) {
+            return !((Map<?, ?>) value).isEmpty();
+        }
+        return false;
+    }
+
+    // Where print writes on this thread: the buffer of the parallel loop item or the writer of
+    // the engine script running on it, or System.out when it is null. Tasks print to the output
+    // of the thread that spawned them, so writes lock it. A writer is flushed after every
+    // write, so a script's output shows while it runs.
+    static final ThreadLocal<Appendable> output = new ThreadLocal<>();
+
+    static void print(Object value) {
+        Appendable out = output.get();
+        if (out == null) {
+            System.out.println(value);
+        } else {
+            write(out, value + System.lineSeparator());
+        }
+    }
+
+    // Lines an item printed, passed on to wherever print writes now
+    static void printAll(String lines) {
+        Appendable out = output.get();
+        if (out == null) {
+            System.out.print(lines);
+        } else {
+            write(out, lines);
+        }
+    }
+
+    private static void write(Appendable out, String text) {
+        synchronized (out) {
+            try {
+                out.append(text);
+                if (out instanceof Flushable) {
+                    ((Flushable) out).flush();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error writing output: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package eucalyptus;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+// Rewrites compiled Nodes before they run:
+// - built-in calls on constants are folded into a Constant, unless they fail,
+// - List literals of constants become one shared Constant (add and sub never change a List),
+// - statements after one that always produces a value are dropped from a body,
+// - pure expressions that read nothing a loop assigns are wrapped in Node.Invariant, which
+//   evaluates them once per run of the loop.
+// Invariants are evaluated where they were, the first time they are reached, so errors
+// happen at the same point and loops that run zero times evaluate nothing. Top-level
+// statements are never removed, so error line numbers stay the same.
+final class Optimizer {
+    static boolean enabled = true;
+    static boolean dump = false;
+
+    // next free index in Context.invariants
+    private int invariants;
+
+    Node[] optimize(Node[] program) {
+        Node[] nodes = new Node[program.length];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = optimize(program[i]);
+        }
+        return nodes;
+    }
+
+    private Node optimize(Node node) {
+        if (node instanceof Node.DefFunction) {
+            Node.DefFunction definition = (Node.DefFunction) node;
+            return new Node.DefFunction(definition.name, definition.slot, definition.parameters,
+                    definition.statements, definition.parameterNames, definition.parameterSlots,
+                    function(optimizeBody(definition.body)));
+        } else if (node instanceof Node.While) {
+            Node.While whileNode = (Node.While) node;
+            Set<String> assigned = new HashSet<>();
+            collectAssigned(node, assigned);
+            Node condition = optimize(whileNode.condition);
+            Node[] statements = optimizeBody(whileNode.statements);
+            int first = invariants;
+            condition = hoist(condition, assigned);
+            statements = hoistAll(statements, assigned);
+            return new Node.While(condition, statements, first, invariants - first);
+        } else if (node instanceof Node.ForEach) {
+            Node.ForEach forEach = (Node.ForEach) node;
+            Set<String> assigned = new HashSet<>();
+            collectAssigned(node, assigned);
+            Node list = forEach.list == null ? null : optimize(forEach.list);
+            Node[] statements = optimizeBody(forEach.statements);
+            int first = invariants;
+            statements = hoistAll(statements, assigned);
+            return new Node.ForEach(forEach.variableName, forEach.variableSlot, list, forEach.listVariable,
+                    forEach.listSlot, forEach.deferredError, statements, first, invariants - first);
+        }
+
+        node = rebuild(node, this::optimize);
+        if (node instanceof Node.ListLiteral) {
+            List<Object> items = new ArrayList<>();
+            for (Node item : ((Node.ListLiteral) node).items) {
+                if (!(item instanceof Node.Constant)) {
+                    return node;
+                }
+                Object value = ((Node.Constant) item).value;
+                if (value != null) {
+                    items.add(value);
+                }
+            }
+            return new Node.Constant(PersistentList.copyOf(items));
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            if (ifNode.condition instanceof Node.Constant) {
+                if (Operations.isTruthy(((Node.Constant) ifNode.condition).value)) {
+                    return ifNode.then;
+                }
+                return ifNode.otherwise != null ? ifNode.otherwise : new Node.Constant(null);
+            }
+        } else if (isOperation(node)) {
+            for (Node child : children(node)) {
+                if (!(child instanceof Node.Constant)) {
+                    return node;
+                }
+            }
+            try {
+                // constants never look at the context
+                return new Node.Constant(Rope.flatten(node.execute(null)));
+            } catch (RuntimeException e) {
+                // leave the error to happen when the program gets there
+                return node;
+            }
+        }
+        return node;
+    }
+
+    // Optimize the statements of a body, which stops at the first statement with a value
+    private Node[] optimizeBody(Node[] statements) {
+        List<Node> kept = new ArrayList<>();
+        for (Node statement : statements) {
+            Node optimized = optimize(statement);
+            kept.add(optimized);
+            if (alwaysHasValue(optimized)) {
+                break;
+            }
+        }
+        return kept.toArray(new Node[0]);
+    }
+
+    // Mark the tail calls again: Calls point at the body they are in tail position of
+    private static Node[] function(Node[] body) {
+        if (body.length > 0) {
+            body[body.length - 1] = Compiler.markTailCalls(body[body.length - 1], body);
+        }
+        return body;
+    }
+
+    // Whether node either produces a non-null value or fails every time it runs
+    private static boolean alwaysHasValue(Node node) {
+        if (node instanceof Node.Constant) {
+            return ((Node.Constant) node).value != null;
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            return ifNode.otherwise != null && alwaysHasValue(ifNode.then) && alwaysHasValue(ifNode.otherwise);
+        }
+        return isOperation(node) || node instanceof Node.ListLiteral || node instanceof Node.Failure;
+    }
+
+    // Built-ins whose value depends only on their arguments and is never null
+    private static boolean isOperation(Node node) {
+        return node instanceof Node.Add || node instanceof Node.Sub || node instanceof Node.Mult
+                || node instanceof Node.And || node instanceof Node.Or || node instanceof Node.Eq
+                || node instanceof Node.LessThan || node instanceof Node.Len;
+    }
+
+    private Node[] hoistAll(Node[] nodes, Set<String> assigned) {
+        Node[] hoisted = new Node[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            hoisted[i] = hoist(nodes[i], assigned);
+        }
+        return hoisted;
+    }
+
+    // Wrap the largest invariant expressions in node. Arguments of Calls are evaluated
+    // after the callee's earlier parameters are bound, so their names may mean something
+    // else there; nested loops and functions hoist their own expressions.
+    private Node hoist(Node node, Set<String> assigned) {
+        if (node instanceof Node.Call || node instanceof Node.While || node instanceof Node.ForEach
+                || node instanceof Node.Parallel || node instanceof Node.DefFunction) {
+            return node;
+        } else if (!(node instanceof Node.Constant) && !(node instanceof Node.Read) && isInvariant(node, assigned)) {
+            return new Node.Invariant(invariants++, node);
+        }
+        return rebuild(node, child -> hoist(child, assigned));
+    }
+
+    private static boolean isInvariant(Node node, Set<String> assigned) {
+        if (node instanceof Node.Constant) {
+            return true;
+        } else if (node instanceof Node.Read) {
+            return !assigned.contains(((Node.Read) node).name);
+        } else if (node instanceof Node.Get) {
+            Node.Get get = (Node.Get) node;
+            return !assigned.contains(get.variableName) && isInvariant(get.key, assigned);
+        } else if (!isOperation(node) && !(node instanceof Node.ListLiteral) && !(node instanceof Node.If)) {
+            return false;
+        }
+        for (Node child : children(node)) {
+            if (!isInvariant(child, assigned)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Names a loop may bind in its own scope or the scopes of loops inside it
+    private static void collectAssigned(Node node, Set<String> assigned) {
+        if (node instanceof Node.Def) {
+            assigned.add(((Node.Def) node).name);
+        } else if (node instanceof Node.Inc) {
+            assigned.add(((Node.Inc) node).variableName);
+        } else if (node instanceof Node.ForEach) {
+            assigned.add(((Node.ForEach) node).variableName);
+        } else if (node instanceof Node.DefFunction) {
+            assigned.add(((Node.DefFunction) node).name);
+            return;
+        }
+        for (Node child : children(node)) {
+            collectAssigned(child, assigned);
+        }
+    }
+
+    // node without Invariants, for code that runs it outside the loop that caches them
+    static Node withoutInvariants(Node node) {
+        if (node instanceof Node.Invariant) {
+            return withoutInvariants(((Node.Invariant) node).expression);
+        } else if (node instanceof Node.While || node instanceof Node.ForEach || node instanceof Node.Parallel
+                || node instanceof Node.DefFunction) {
+            // these manage their own Invariants
+            return node;
+        }
+        return rebuild(node, Optimizer::withoutInvariants);
+    }
+
+    static Node[] children(Node node) {
+        if (node instanceof Node.ListLiteral) {
+            return ((Node.ListLiteral) node).items;
+        } else if (node instanceof Node.Add) {
+            return ((Node.Add) node).arguments;
+        } else if (node instanceof Node.Sub) {
+            return ((Node.Sub) node).arguments;
+        } else if (node instanceof Node.Mult) {
+            return ((Node.Mult) node).arguments;
+        } else if (node instanceof Node.And) {
+            return ((Node.And) node).arguments;
+        } else if (node instanceof Node.Or) {
+            return ((Node.Or) node).arguments;
+        } else if (node instanceof Node.Print) {
+            return ((Node.Print) node).arguments;
+        } else if (node instanceof Node.Call) {
+            return ((Node.Call) node).arguments;
+        } else if (node instanceof Node.Eq) {
+            return new Node[] { ((Node.Eq) node).first, ((Node.Eq) node).second };
+        } else if (node instanceof Node.LessThan) {
+            return new Node[] { ((Node.LessThan) node).first, ((Node.LessThan) node).second };
+        } else if (node instanceof Node.Len) {
+            return new Node[] { ((Node.Len) node).value };
+        } else if (node instanceof Node.Get) {
+            return new Node[] { ((Node.Get) node).key };
+        } else if (node instanceof Node.Def) {
+            return new Node[] { ((Node.Def) node).value };
+        } else if (node instanceof Node.Inc) {
+            return new Node[] { ((Node.Inc) node).amount };
+        } else if (node instanceof Node.Invariant) {
+            return new Node[] { ((Node.Invariant) node).expression };
+        } else if (node instanceof Node.Spawn) {
+            return new Node[] { ((Node.Spawn) node).function, ((Node.Spawn) node).arguments };
+        } else if (node instanceof Node.Await) {
+            return new Node[] { ((Node.Await) node).task };
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            return ifNode.otherwise == null ? new Node[] { ifNode.condition, ifNode.then }
+                    : new Node[] { ifNode.condition, ifNode.then, ifNode.otherwise };
+        } else if (node instanceof Node.While) {
+            Node.While whileNode = (Node.While) node;
+            return concat(whileNode.condition, whileNode.statements);
+        } else if (node instanceof Node.ForEach) {
+            Node.ForEach forEach = (Node.ForEach) node;
+            return forEach.list == null ? forEach.statements : concat(forEach.list, forEach.statements);
+        } else if (node instanceof Node.Parallel) {
+            return new Node[] { ((Node.Parallel) node).loop };
+        } else if (node instanceof Node.DefFunction) {
+            return ((Node.DefFunction) node).body;
+        }
+        return new Node[0];
+    }
+
+    private static Node[] concat(Node first, Node[] rest) {
+        Node[] nodes = new Node[rest.length + 1];
+        nodes[0] = first;
+        System.arraycopy(rest, 0, nodes, 1, rest.length);
+        return nodes;
+    }
+
+    // A copy of node with transform applied to each child
+    private static Node rebuild(Node node, UnaryOperator<Node> transform) {
+        if (node instanceof Node.ListLiteral) {
+            return new Node.ListLiteral(map(((Node.ListLiteral) node).items, transform));
+        } else if (node instanceof Node.Add) {
+            return new Node.Add(map(((Node.Add) node).arguments, transform));
+        } else if (node instanceof Node.Sub) {
+            return new Node.Sub(map(((Node.Sub) node).arguments, transform));
+        } else if (node instanceof Node.Mult) {
+            return new Node.Mult(map(((Node.Mult) node).arguments, transform));
+        } else if (node instanceof Node.And) {
+            return new Node.And(map(((Node.And) node).arguments, transform));
+        } else if (node instanceof Node.Or) {
+            return new Node.Or(map(((Node.Or) node).arguments, transform));
+        } else if (node instanceof Node.Print) {
+            return new Node.Print(map(((Node.Print) node).arguments, transform));
+        } else if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            return new Node.Call(call.name, call.slot, map(call.arguments, transform), call.tailOf);
+        } else if (node instanceof Node.Eq) {
+            Node.Eq eq = (Node.Eq) node;
+            return new Node.Eq(transform.apply(eq.first), transform.apply(eq.second));
+        } else if (node instanceof Node.LessThan) {
+            Node.LessThan lessThan = (Node.LessThan) node;
+            return new Node.LessThan(transform.apply(lessThan.first), transform.apply(lessThan.second));
+        } else if (node instanceof Node.Len) {
+            return new Node.Len(transform.apply(((Node.Len) node).value));
+        } else if (node instanceof Node.Get) {
+            Node.Get get = (Node.Get) node;
+            return new Node.Get(get.variableName, get.slot, transform.apply(get.key));
+        } else if (node instanceof Node.Def) {
+            Node.Def def = (Node.Def) node;
+            return new Node.Def(def.name, def.slot, def.constant, transform.apply(def.value));
+        } else if (node instanceof Node.Inc) {
+            Node.Inc inc = (Node.Inc) node;
+            return new Node.Inc(inc.variableName, inc.variable.slot, transform.apply(inc.amount));
+        } else if (node instanceof Node.Invariant) {
+            Node.Invariant invariant = (Node.Invariant) node;
+            return new Node.Invariant(invariant.index, transform.apply(invariant.expression));
+        } else if (node instanceof Node.Spawn) {
+            Node.Spawn spawn = (Node.Spawn) node;
+            return new Node.Spawn(transform.apply(spawn.function), transform.apply(spawn.arguments));
+        } else if (node instanceof Node.Await) {
+            Node.Await await = (Node.Await) node;
+            return new Node.Await(transform.apply(await.task), await.all);
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            Node otherwise = ifNode.otherwise == null ? null : transform.apply(ifNode.otherwise);
+            return new Node.If(transform.apply(ifNode.condition), transform.apply(ifNode.then), otherwise);
+        } else if (node instanceof Node.While) {
+            Node.While whileNode = (Node.While) node;
+            return new Node.While(transform.apply(whileNode.condition), map(whileNode.statements, transform),
+                    whileNode.firstInvariant, whileNode.invariantCount);
+        } else if (node instanceof Node.ForEach) {
+            Node.ForEach forEach = (Node.ForEach) node;
+            Node list = forEach.list == null ? null : transform.apply(forEach.list);
+            return new Node.ForEach(forEach.variableName, forEach.variableSlot, list, forEach.listVariable,
+                    forEach.listSlot, forEach.deferredError, map(forEach.statements, transform),
+                    forEach.firstInvariant, forEach.invariantCount);
+        } else if (node instanceof Node.Parallel) {
+            Node.Parallel parallel = (Node.Parallel) node;
+            return new Node.Parallel(parallel.name, parallel.map, (Node.ForEach) transform.apply(parallel.loop));
+        } else if (node instanceof Node.DefFunction) {
+            Node.DefFunction definition = (Node.DefFunction) node;
+            return new Node.DefFunction(definition.name, definition.slot, definition.parameters,
+                    definition.statements, definition.parameterNames, definition.parameterSlots,
+                    function(map(definition.body, transform)));
+        }
+        return node;
+    }
+
+    private static Node[] map(Node[] nodes, UnaryOperator<Node> transform) {
+        Node[] mapped = new Node[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            mapped[i] = transform.apply(nodes[i]);
+        }
+        return mapped;
+    }
+
+    // The program in source form, with cached expressions shown as invariant(...)
+    static String dump(Node[] program) {
+        StringBuilder text = new StringBuilder();
+        for (Node statement : program) {
+            dump(statement, text);
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void dump(Node node, StringBuilder text) {
+        if (node instanceof Node.Constant) {
+            Object value = ((Node.Constant) node).value;
+            text.append(value instanceof String ? "\"" + value + "\"" : String.valueOf(value));
+        } else if (node instanceof Node.Read) {
+            text.append(((Node.Read) node).name);
+        } else if (node instanceof Node.Failure) {
+            text.append("<error: ").append(((Node.Failure) node).message).append('>');
+        } else if (node instanceof Node.ListLiteral) {
+            dumpList(((Node.ListLiteral) node).items, text);
+        } else if (node instanceof Node.Def) {
+            text.append("def(").append(((Node.Def) node).name).append(", ");
+            dump(((Node.Def) node).value, text);
+            text.append(')');
+        } else if (node instanceof Node.Inc) {
+            text.append("inc(").append(((Node.Inc) node).variableName).append(", ");
+            dump(((Node.Inc) node).amount, text);
+            text.append(')');
+        } else if (node instanceof Node.Get) {
+            text.append("get(").append(((Node.Get) node).variableName).append(", ");
+            dump(((Node.Get) node).key, text);
+            text.append(')');
+        } else if (node instanceof Node.DefFunction) {
+            Node.DefFunction definition = (Node.DefFunction) node;
+            text.append("defFunction(").append(definition.name).append(", ").append(definition.parameters)
+                    .append(", ");
+            dumpList(definition.body, text);
+            text.append(')');
+        } else if (node instanceof Node.While) {
+            text.append("while(");
+            dump(((Node.While) node).condition, text);
+            text.append(", ");
+            dumpList(((Node.While) node).statements, text);
+            text.append(')');
+        } else if (node instanceof Node.ForEach || node instanceof Node.Parallel) {
+            String name = "forEach";
+            if (node instanceof Node.Parallel) {
+                name = ((Node.Parallel) node).name;
+                node = ((Node.Parallel) node).loop;
+            }
+            Node.ForEach forEach = (Node.ForEach) node;
+            text.append(name).append('(').append(forEach.variableName).append(", ");
+            if (forEach.list != null) {
+                dump(forEach.list, text);
+            } else {
+                text.append(forEach.listVariable);
+            }
+            text.append(", ");
+            dumpList(forEach.statements, text);
+            text.append(')');
+        } else {
+            text.append(name(node));
+            text.append('(');
+            Node[] children = children(node);
+            for (int i = 0; i < children.length; i++) {
+                if (i > 0) {
+                    text.append(", ");
+                }
+                dump(children[i], text);
+            }
+            text.append(')');
+        }
+    }
+
+    private static void dumpList(Node[] nodes, StringBuilder text) {
+        text.append('[');
+        for (int i = 0; i < nodes.length; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            dump(nodes[i], text);
+        }
+        text.append(']');
+    }
+
+    private static String name(Node node) {
+        if (node instanceof Node.Call) {
+            return ((Node.Call) node).name;
+        } else if (node instanceof Node.LessThan) {
+            return "lt";
+        } else if (node instanceof Node.If) {
+            return "if";
+        } else if (node instanceof Node.Await && ((Node.Await) node).all) {
+            return "awaitAll";
+        }
+        String name = node.getClass().getSimpleName();
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -1,143 +1,238 @@
 package eucalyptus;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Parser {
-    private String input;
+    private char[] input;
+    private int from;
+    private int to;
+    private Lexer tokens;
+    private int position;
     private static final String TRAILING_COMMA_IN_FUNCTION = "Trailing comma in function call";
     private static final String TRAILING_COMMA_IN_LIST = "Trailing comma in list";
     private static final String TRAILING_COMMA_IN_DICT = "Trailing comma in dict";
 
+    // inputs smaller than this are not worth splitting
+    private static final int PARALLEL_THRESHOLD = 64 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+
     public Parser(String input) {
+        this(input.toCharArray());
+    }
+
+    public Parser(char[] input) {
+        this(input, 0, input.length);
+    }
+
+    public Parser(char[] input, int from, int to) {
         this.input = input;
+        this.from = from;
+        this.to = to;
     }
 
     public List<FunctionCall> parse() throws Exception {
-        Queue<String> tokens = tokenize(this.input);
+        Events.Parse lex = Events.parse();
+        tokens = new Lexer(input, from, to).tokenize();
+        if (lex != null) {
+            lex.record("lex", to - from, 0);
+        }
+        Events.Parse parse = Events.parse();
+        position = 0;
         List<FunctionCall> functions = new ArrayList<>();
         int lineNumber = 1;
         try {
-            while (!tokens.isEmpty()) {
-                functions.add(parseLine(tokens));
+            while (position < tokens.count()) {
+                functions.add(parseLine());
                 lineNumber++;
             }
         } catch (Exception e) {
             throw new Exception("ParseError on line " + lineNumber + ": " + e.getMessage());
         }
+        if (parse != null) {
+            parse.record("parse", to - from, functions.size());
+        }
         return functions;
     }
 
-    private Queue<String> tokenize(String input) {
-        Queue<String> tokens = new LinkedList<>();
-        StringBuilder token = new StringBuilder();
-        boolean inString = false;
-        char quote = 0;
+    // Parse chunks of top-level statements on the fork/join pool and merge them in order.
+    // Any chunk that fails to parse falls back to the sequential path, which produces
+    // the same ParseError (and line number) a sequential parse would have.
+    public List<FunctionCall> parseParallel() throws Exception {
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        if (to - from < PARALLEL_THRESHOLD || parallelism < 2) {
+            return parse();
+        }
+        int[] chunkEnds = splitStatements((to - from) / (parallelism * CHUNKS_PER_THREAD));
+        if (chunkEnds == null || chunkEnds.length < 2) {
+            return parse();
+        }
+
+        ParseChunks task = new ParseChunks(chunkEnds, 0, chunkEnds.length,
+                new ArrayList<>(Collections.nCopies(chunkEnds.length, null)));
+        ForkJoinPool.commonPool().invoke(task);
+        if (task.failed) {
+            return parse();
+        }
+
+        int size = 0;
+        for (List<FunctionCall> chunk : task.results) {
+            size += chunk.size();
+        }
+        List<FunctionCall> functions = new ArrayList<>(size);
+        for (List<FunctionCall> chunk : task.results) {
+            functions.addAll(chunk);
+        }
+        return functions;
+    }
 
-        for (int i = 0; i < input.length(); i++) {
-            char c = input.charAt(i);
+    // Returns the end offsets of chunks of roughly chunkSize characters that each hold whole
+    // top-level statements, or null if the brackets or strings in the input are not balanced
+    private int[] splitStatements(int chunkSize) {
+        int[] chunkEnds = new int[16];
+        int chunks = 0;
+        char[] open = new char[64];
+        int depth = 0;
+        int chunkStart = from;
 
-            // Handle string literals
-            if (c == '"' || c == '\'') {
-                if (inString) {
-                    if (c == quote) {
-                        // End of string
-                        token.append(c);
-                        tokens.add(token.toString());
-                        token.setLength(0);
-                        inString = false;
-                        quote = 0;
-                    } else {
-                        // Escaped quote
-                        token.append(c);
+        for (int i = from; i < to; i++) {
+            char c = input[i];
+            switch (c) {
+                case '"':
+                case '\'':
+                    int end = i + 1;
+                    while (end < to && input[end] != c) {
+                        end++;
                     }
-                } else {
-                    // Start of string
-                    if (token.length() > 0) {
-                        tokens.add(token.toString());
-                        token.setLength(0);
+                    if (end == to) {
+                        return null;
                     }
-                    token.append(c);
-                    inString = true;
-                    quote = c;
-                }
-                continue;
-            }
-
-            // If we are in a string, just keep appending characters
-            if (inString) {
-                token.append(c);
-                continue;
+                    i = end;
+                    break;
+                case '(':
+                case '[':
+                case '{':
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                    }
+                    open[depth++] = c;
+                    break;
+                case ')':
+                case ']':
+                case '}':
+                    char expected = c == ')' ? '(' : c == ']' ? '[' : '{';
+                    if (depth == 0 || open[--depth] != expected) {
+                        return null;
+                    }
+                    if (depth == 0 && i + 1 - chunkStart >= chunkSize) {
+                        if (chunks == chunkEnds.length) {
+                            chunkEnds = Arrays.copyOf(chunkEnds, chunks * 2);
+                        }
+                        chunkEnds[chunks++] = i + 1;
+                        chunkStart = i + 1;
+                    }
+                    break;
+                default:
+                    break;
             }
+        }
+        if (depth != 0) {
+            return null;
+        }
 
-            // Handle other tokens
-            List<Character> specialChars = List.of('(', ')', ',', '[', ']', ':', '{', '}');
-            if (specialChars.contains(c)) {
-                if (token.length() > 0) {
-                    tokens.add(token.toString());
-                    token.setLength(0);
-                }
-                tokens.add(String.valueOf(c)); // Add '(' or ')' or ','
-            } else if (Character.isWhitespace(c)) {
-                if (token.length() > 0) {
-                    tokens.add(token.toString());
-                    token.setLength(0);
-                }
-            } else {
-                token.append(c); // Build function name
+        if (chunkStart < to) {
+            if (chunks == chunkEnds.length) {
+                chunkEnds = Arrays.copyOf(chunkEnds, chunks + 1);
             }
+            chunkEnds[chunks++] = to;
         }
+        return Arrays.copyOf(chunkEnds, chunks);
+    }
+
+    private class ParseChunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] chunkEnds;
+        private final int first;
+        private final int last;
+        // one slot per chunk, each set by the task that parses it
+        private final List<List<FunctionCall>> results;
+        private volatile boolean failed;
 
-        // Add any remaining token at the end
-        if (token.length() > 0) {
-            tokens.add(token.toString());
+        ParseChunks(int[] chunkEnds, int first, int last, List<List<FunctionCall>> results) {
+            this.chunkEnds = chunkEnds;
+            this.first = first;
+            this.last = last;
+            this.results = results;
         }
 
-        if (inString) {
-            throw new RuntimeException("Unterminated string literal; expected closing " + quote);
+        @Override
+        protected void compute() {
+            if (last - first == 1) {
+                int start = first == 0 ? from : chunkEnds[first - 1];
+                try {
+                    results.set(first, new Parser(input, start, chunkEnds[first]).parse());
+                } catch (Exception e) {
+                    failed = true;
+                }
+                return;
+            }
+            int middle = (first + last) >>> 1;
+            ParseChunks left = new ParseChunks(chunkEnds, first, middle, results);
+            ParseChunks right = new ParseChunks(chunkEnds, middle, last, results);
+            invokeAll(left, right);
+            failed = left.failed || right.failed;
         }
+    }
 
-        return tokens;
+    private byte peek() {
+        return tokens.kind(position);
     }
 
-    private FunctionCall parseLine(Queue<String> tokens) throws Exception {
-        String name = tokens.poll();
-        if (name == null) {
+    private String describe(int token) {
+        return token < tokens.count() ? "'" + tokens.text(token) + "'" : "nothing";
+    }
+
+    private FunctionCall parseLine() throws Exception {
+        if (position >= tokens.count()) {
             throw new Exception("Expected function name, but got nothing");
         }
+        String name = tokens.text(position++);
 
         List<Object> parameters = new ArrayList<>();
 
-        String token = tokens.poll();
-        if (token == null || !token.equals("(")) {
-            throw new Exception("Expected '(', but got " + (token == null ? "nothing" : "'" + token + "'"));
+        if (peek() != Lexer.LEFT_PAREN) {
+            throw new Exception("Expected '(', but got " + describe(position));
         }
+        position++;
 
         boolean trailingComma = false;
-        while (!tokens.isEmpty()) {
-            if (tokens.peek().equals(")")) {
+        while (position < tokens.count()) {
+            if (peek() == Lexer.RIGHT_PAREN) {
                 if (trailingComma) {
                     throw new Exception(TRAILING_COMMA_IN_FUNCTION);
                 }
                 break;
             }
             trailingComma = false;
-            Object parameter = parseStatement(tokens);
+            Object parameter = parseStatement();
             parameters.add(parameter);
-            if (tokens.peek().equals(",")) {
-                tokens.poll(); // consume ','
+            if (peek() == Lexer.COMMA) {
+                position++; // consume ','
                 trailingComma = true;
             }
         }
 
-        token = tokens.poll();
-        if (token == null || !token.equals(")")) {
-            throw new Exception("Expected ')', but got " + (token == null ? "nothing" : "'" + token + "'"));
+        if (peek() != Lexer.RIGHT_PAREN) {
+            throw new Exception("Expected ')', but got " + describe(position));
         }
+        position++;
 
         if (trailingComma) {
             throw new Exception(TRAILING_COMMA_IN_FUNCTION);
@@ -146,28 +241,29 @@ public class Parser {
         return new FunctionCall(name, parameters);
     }
 
-    private Object parseStatement(Queue<String> tokens) throws Exception {
-        String token = tokens.poll();
-        if (token == null) {
+    private Object parseStatement() throws Exception {
+        if (position >= tokens.count()) {
             throw new Exception("Expected statement, but got nothing");
         }
+        int token = position++;
+        byte kind = tokens.kind(token);
 
-        if (token.equals("[")) {
+        if (kind == Lexer.LEFT_BRACKET) {
             // parse list
             List<Object> list = new ArrayList<>();
             boolean trailingComma = false;
-            while (!tokens.isEmpty()) {
-                if (tokens.peek().equals("]")) {
+            while (position < tokens.count()) {
+                if (peek() == Lexer.RIGHT_BRACKET) {
                     if (trailingComma) {
                         throw new Exception(TRAILING_COMMA_IN_LIST);
                     }
-                    tokens.poll();
+                    position++;
                     return new Literal(list);
                 }
                 trailingComma = false;
-                list.add(parseStatement(tokens));
-                if (tokens.peek().equals(",")) {
-                    tokens.poll(); // consume ','
+                list.add(parseStatement());
+                if (peek() == Lexer.COMMA) {
+                    position++; // consume ','
                     trailingComma = true;
                 }
             }
@@ -175,19 +271,19 @@ public class Parser {
                 throw new Exception(TRAILING_COMMA_IN_LIST);
             }
             return new Literal(list);
-        } else if (token.equals("{")) {
+        } else if (kind == Lexer.LEFT_BRACE) {
             // parse dict
             Map<String, Object> dict = new HashMap<>();
             boolean trailingComma = false;
-            while (!tokens.isEmpty()) {
-                if (tokens.peek().equals("}")) {
+            while (position < tokens.count()) {
+                if (peek() == Lexer.RIGHT_BRACE) {
                     if (trailingComma) {
                         throw new Exception(TRAILING_COMMA_IN_DICT);
                     }
-                    tokens.poll();
+                    position++;
                     return new Literal(dict);
                 }
-                Object key = parseStatement(tokens);
+                Object key = parseStatement();
                 if (!(key instanceof Literal)) {
                     throw new Exception("Expected literal as key in dict, but got " + key);
                 }
@@ -196,73 +292,65 @@ public class Parser {
                     throw new Exception("Expected string as key in dict, but got " + keyValue);
                 }
                 String keyString = (String) keyValue;
-                String colon = tokens.poll();
-                if (colon == null || !colon.equals(":")) {
-                    throw new Exception("Expected ':', but got " + (colon == null ? "nothing" : "'" + colon + "'"));
+                if (peek() != Lexer.COLON) {
+                    throw new Exception("Expected ':', but got " + describe(position));
                 }
-                Object value = parseStatement(tokens);
+                position++;
+                Object value = parseStatement();
                 dict.put(keyString, value);
                 trailingComma = false;
-                if (tokens.peek().equals(",")) {
-                    tokens.poll(); // consume ','
+                if (peek() == Lexer.COMMA) {
+                    position++; // consume ','
                     trailingComma = true;
                 }
             }
             return null;
-        } else if (
-            ((token.startsWith("\"") && token.endsWith("\"")) || (token.startsWith("'") && token.endsWith("'")))
-            && token.length() > 1
-        ) {
+        } else if (kind == Lexer.STRING) {
             // parse string
-            String stringValue = token.substring(1, token.length() - 1);
-            return new Literal(stringValue);
+            return new Literal(tokens.stringValue(token));
         } else {
             // it's either a literal, function call, or a variable
-            if (tokens.peek().equals("(")) {
+            if (peek() == Lexer.LEFT_PAREN) {
                 // function call
+                String name = tokens.text(token);
                 List<Object> arguments = new ArrayList<>();
-                tokens.poll(); // consume '('
+                position++; // consume '('
                 boolean trailingComma = false;
-                while (!tokens.isEmpty()) {
-                    if (tokens.peek().equals(")")) {
+                while (position < tokens.count()) {
+                    if (peek() == Lexer.RIGHT_PAREN) {
                         if (trailingComma) {
                             throw new Exception(TRAILING_COMMA_IN_FUNCTION);
                         }
-                        tokens.poll();
-                        return new FunctionCall(token, arguments);
+                        position++;
+                        return new FunctionCall(name, arguments);
                     }
                     trailingComma = false;
-                    arguments.add(parseStatement(tokens));
-                    if (tokens.peek().equals(",")) {
-                        tokens.poll(); // consume ','
+                    arguments.add(parseStatement());
+                    if (peek() == Lexer.COMMA) {
+                        position++; // consume ','
                         trailingComma = true;
                     }
                 }
                 if (trailingComma) {
                     throw new Exception(TRAILING_COMMA_IN_FUNCTION);
                 }
-                return new FunctionCall(token, arguments);
-            } else {
-                if (token.equals("true") || token.equals("false")) {
-                    // boolean literal
-                    return new Literal(Boolean.parseBoolean(token));
-                }
-                if (token.equals("null")) {
-                    // null literal
+                return new FunctionCall(name, arguments);
+            }
+            switch (kind) {
+                case Lexer.TRUE:
+                    return new Literal(true);
+                case Lexer.FALSE:
+                    return new Literal(false);
+                case Lexer.NULL:
                     return new Literal(null);
-                }
-                // attempt to parse number
-                try {
-                    if (token.contains(".")) {
-                        return new Literal(Double.parseDouble(token)); // Floating point number
-                    } else {
-                        return new Literal(Integer.parseInt(token)); // Integer
-                    }
-                } catch (NumberFormatException e) {
-                    // it's a variable
-                    return new Variable(token);
-                }
+                case Lexer.INTEGER:
+                    return new Literal(tokens.intValue(token));
+                case Lexer.DOUBLE:
+                    return new Literal(tokens.doubleValue(token));
+                default:
+                    // it's a variable (punctuation in statement position also ends up here)
+                    return new Variable(tokens.text(token));
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,398 @@
+package eucalyptus;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Immutable Dict value produced by add and sub, stored as a hash array mapped trie: each
+// level of the tree picks a child by 5 more bits of the key's hash, so put and remove copy
+// one path of the tree and the new Dict shares everything else with the old one.
+//
+// Dicts used to be HashMaps copied on every change, and programs print them, so entries
+// are iterated in the order that HashMap would have given. A HashMap visits its buckets
+// in index order and each bucket in insertion order. Every entry records when it was
+// inserted, and capacity follows the table size the copies and puts would have resized
+// to. Buckets that HashMap turns into trees (8 or more colliding keys) are not modelled.
+final class PersistentDict extends AbstractMap<String, Object> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int TREEIFY_THRESHOLD = 8;
+    private static final int MIN_TREEIFY_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final class Leaf implements Map.Entry<String, Object> {
+        final String key;
+        final Object value;
+        final int hash;
+        final long order;
+
+        Leaf(String key, Object value, int hash, long order) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+            this.order = order;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return Objects.equals(key, entry.getKey()) && Objects.equals(value, entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    // Children are Leaf, Branch or Collision, one for each bit set in bitmap
+    private static final class Branch {
+        final int bitmap;
+        final Object[] children;
+
+        Branch(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    // Leaves whose keys have the same hash
+    private static final class Collision {
+        final int hash;
+        final Leaf[] leaves;
+
+        Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    static final PersistentDict EMPTY = new PersistentDict(new Branch(0, new Object[0]), 0, 0, 0);
+
+    private final Branch root;
+    private final int size;
+    // length of the table the equivalent HashMap would have, 0 before it has one
+    private final int capacity;
+    private final long nextOrder;
+    private volatile Leaf[] ordered;
+
+    private PersistentDict(Branch root, int size, int capacity, long nextOrder) {
+        this.root = root;
+        this.size = size;
+        this.capacity = capacity;
+        this.nextOrder = nextOrder;
+    }
+
+    // What new HashMap<>(map) would hold
+    static PersistentDict copyOf(Map<String, ?> map) {
+        if (map instanceof PersistentDict) {
+            return ((PersistentDict) map).copy();
+        }
+        PersistentDict result = EMPTY;
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            result = result.append(entry.getKey(), entry.getValue());
+        }
+        return new PersistentDict(result.root, result.size, capacityFor(result.size), result.nextOrder);
+    }
+
+    // The copy constructor sizes the table for the entries and inserts them in iteration
+    // order. Growing keeps the order inside each bucket; shrinking merges buckets, so the
+    // entries are numbered again by their current position.
+    private PersistentDict copy() {
+        int newCapacity = capacityFor(size);
+        if (newCapacity >= capacity) {
+            return newCapacity == capacity ? this : new PersistentDict(root, size, newCapacity, nextOrder);
+        }
+        PersistentDict result = EMPTY;
+        for (Leaf leaf : ordered()) {
+            result = result.append(leaf.key, leaf.value);
+        }
+        return new PersistentDict(result.root, size, newCapacity, result.nextOrder);
+    }
+
+    // What put(key, value) on a HashMap copied from this Dict would give
+    PersistentDict with(String key, Object value) {
+        int hash = hash(key);
+        Leaf existing = find(root, key, hash, 0);
+        if (existing != null) {
+            Leaf leaf = new Leaf(key, value, hash, existing.order);
+            return new PersistentDict(insert(root, leaf, 0), size, capacity, nextOrder);
+        }
+        int newCapacity = capacity == 0 ? DEFAULT_CAPACITY : capacity;
+        if (newCapacity < MIN_TREEIFY_CAPACITY && bucketSize(hash, newCapacity) >= TREEIFY_THRESHOLD) {
+            // HashMap grows the table instead of making a tree of a full bucket
+            newCapacity *= 2;
+        }
+        if (size + 1 > (int) (newCapacity * LOAD_FACTOR)) {
+            newCapacity *= 2;
+        }
+        Leaf leaf = new Leaf(key, value, hash, nextOrder);
+        return new PersistentDict(insert(root, leaf, 0), size + 1, newCapacity, nextOrder + 1);
+    }
+
+    // What putAll(map) on a HashMap copied from this Dict would give
+    PersistentDict withAll(Map<String, ?> map) {
+        if (map.isEmpty()) {
+            return this;
+        }
+        PersistentDict result = this;
+        if (capacity == 0) {
+            result = new PersistentDict(root, size, capacityFor(map.size()), nextOrder);
+        } else {
+            int newCapacity = capacity;
+            while (map.size() > (int) (newCapacity * LOAD_FACTOR)) {
+                newCapacity *= 2;
+            }
+            result = new PersistentDict(root, size, newCapacity, nextOrder);
+        }
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            result = result.with(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    // Without key, which must be present
+    PersistentDict without(String key) {
+        return new PersistentDict((Branch) remove(root, key, hash(key), 0), size - 1, capacity, nextOrder);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(root, key, hash(key), 0) != null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        Leaf leaf = find(root, key, hash(key), 0);
+        return leaf == null ? null : leaf.value;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return Arrays.<Map.Entry<String, Object>>asList(ordered()).iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private Leaf[] ordered() {
+        Leaf[] leaves = ordered;
+        if (leaves == null) {
+            leaves = new Leaf[size];
+            collect(root, leaves, 0);
+            int mask = capacity - 1;
+            Arrays.sort(leaves, Comparator.<Leaf>comparingInt(leaf -> leaf.hash & mask)
+                    .thenComparingLong(leaf -> leaf.order));
+            ordered = leaves;
+        }
+        return leaves;
+    }
+
+    // With a new key inserted last, leaving capacity alone
+    private PersistentDict append(String key, Object value) {
+        Leaf leaf = new Leaf(key, value, hash(key), nextOrder);
+        return new PersistentDict(insert(root, leaf, 0), size + 1, capacity, nextOrder + 1);
+    }
+
+    private int bucketSize(int hash, int tableLength) {
+        Leaf[] leaves = new Leaf[size];
+        collect(root, leaves, 0);
+        int mask = tableLength - 1;
+        int count = 0;
+        for (Leaf leaf : leaves) {
+            if ((leaf.hash & mask) == (hash & mask)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int capacityFor(int size) {
+        if (size == 0) {
+            return 0;
+        }
+        int minimum = (int) (size / LOAD_FACTOR + 1.0f);
+        return minimum <= 1 ? 1 : Integer.highestOneBit(minimum - 1) << 1;
+    }
+
+    // HashMap.hash
+    private static int hash(Object key) {
+        int h;
+        return key == null ? 0 : (h = key.hashCode()) ^ (h >>> 16);
+    }
+
+    private static Leaf find(Object node, Object key, int hash, int shift) {
+        while (true) {
+            if (node instanceof Branch) {
+                Branch branch = (Branch) node;
+                int bit = 1 << ((hash >>> shift) & 31);
+                if ((branch.bitmap & bit) == 0) {
+                    return null;
+                }
+                node = branch.children[Integer.bitCount(branch.bitmap & (bit - 1))];
+                shift += 5;
+            } else if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.hash == hash && Objects.equals(leaf.key, key) ? leaf : null;
+            } else {
+                Collision collision = (Collision) node;
+                if (collision.hash != hash) {
+                    return null;
+                }
+                for (Leaf leaf : collision.leaves) {
+                    if (Objects.equals(leaf.key, key)) {
+                        return leaf;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    private static Branch insert(Branch branch, Leaf leaf, int shift) {
+        int bit = 1 << ((leaf.hash >>> shift) & 31);
+        int index = Integer.bitCount(branch.bitmap & (bit - 1));
+        if ((branch.bitmap & bit) == 0) {
+            Object[] children = new Object[branch.children.length + 1];
+            System.arraycopy(branch.children, 0, children, 0, index);
+            children[index] = leaf;
+            System.arraycopy(branch.children, index, children, index + 1, branch.children.length - index);
+            return new Branch(branch.bitmap | bit, children);
+        }
+        Object child = branch.children[index];
+        Object newChild;
+        if (child instanceof Branch) {
+            newChild = insert((Branch) child, leaf, shift + 5);
+        } else if (child instanceof Leaf) {
+            Leaf other = (Leaf) child;
+            if (other.hash == leaf.hash) {
+                newChild = Objects.equals(other.key, leaf.key) ? leaf
+                        : new Collision(leaf.hash, new Leaf[] { other, leaf });
+            } else {
+                newChild = merge(other, other.hash, leaf, shift + 5);
+            }
+        } else {
+            Collision collision = (Collision) child;
+            if (collision.hash == leaf.hash) {
+                newChild = insert(collision, leaf);
+            } else {
+                newChild = merge(collision, collision.hash, leaf, shift + 5);
+            }
+        }
+        Object[] children = branch.children.clone();
+        children[index] = newChild;
+        return new Branch(branch.bitmap, children);
+    }
+
+    private static Collision insert(Collision collision, Leaf leaf) {
+        Leaf[] leaves = collision.leaves;
+        for (int i = 0; i < leaves.length; i++) {
+            if (Objects.equals(leaves[i].key, leaf.key)) {
+                leaves = leaves.clone();
+                leaves[i] = leaf;
+                return new Collision(collision.hash, leaves);
+            }
+        }
+        leaves = Arrays.copyOf(leaves, leaves.length + 1);
+        leaves[leaves.length - 1] = leaf;
+        return new Collision(collision.hash, leaves);
+    }
+
+    // Branch holding node, whose keys hash to nodeHash, and leaf, which hashes differently
+    private static Branch merge(Object node, int nodeHash, Leaf leaf, int shift) {
+        int nodeIndex = (nodeHash >>> shift) & 31;
+        int leafIndex = (leaf.hash >>> shift) & 31;
+        if (nodeIndex == leafIndex) {
+            return new Branch(1 << nodeIndex, new Object[] { merge(node, nodeHash, leaf, shift + 5) });
+        }
+        Object[] children = nodeIndex < leafIndex ? new Object[] { node, leaf } : new Object[] { leaf, node };
+        return new Branch((1 << nodeIndex) | (1 << leafIndex), children);
+    }
+
+    // node without key, or null when nothing is left of it
+    private static Object remove(Object node, Object key, int hash, int shift) {
+        if (node instanceof Leaf) {
+            return null;
+        } else if (node instanceof Collision) {
+            Leaf[] leaves = ((Collision) node).leaves;
+            Leaf[] rest = new Leaf[leaves.length - 1];
+            int count = 0;
+            for (Leaf leaf : leaves) {
+                if (!Objects.equals(leaf.key, key)) {
+                    rest[count++] = leaf;
+                }
+            }
+            return rest.length == 1 ? rest[0] : new Collision(hash, rest);
+        }
+        Branch branch = (Branch) node;
+        int bit = 1 << ((hash >>> shift) & 31);
+        int index = Integer.bitCount(branch.bitmap & (bit - 1));
+        Object child = remove(branch.children[index], key, hash, shift + 5);
+        if (child != null) {
+            Object[] children = branch.children.clone();
+            children[index] = child;
+            return new Branch(branch.bitmap, children);
+        }
+        if (branch.children.length == 1 && shift > 0) {
+            return null;
+        }
+        Object[] children = new Object[branch.children.length - 1];
+        System.arraycopy(branch.children, 0, children, 0, index);
+        System.arraycopy(branch.children, index + 1, children, index, children.length - index);
+        return new Branch(branch.bitmap & ~bit, children);
+    }
+
+    private static int collect(Object node, Leaf[] leaves, int count) {
+        if (node instanceof Leaf) {
+            leaves[count++] = (Leaf) node;
+        } else if (node instanceof Collision) {
+            for (Leaf leaf : ((Collision) node).leaves) {
+                leaves[count++] = leaf;
+            }
+        } else {
+            for (Object child : ((Branch) node).children) {
+                count = collect(child, leaves, count);
+            }
+        }
+        return count;
+    }
+}
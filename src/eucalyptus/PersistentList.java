@@ -0,0 +1,415 @@
+package eucalyptus;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+// Immutable List value produced by list literals, add and sub. Items live in a tree of
+// 32-wide arrays with the last up to 32 items kept in a separate tail, so appending copies
+// at most one path of the tree and the new List shares everything else with the old one.
+//
+// A List of only Integers keeps them in int[] leaves and a List of only Doubles in double[]
+// leaves, a quarter of the memory of boxed items. Appending anything else to one copies it
+// into Object[] leaves first; getInt and getDouble read the numbers without boxing them.
+// Ropes are stored as the Strings they stand for.
+final class PersistentList extends AbstractList<Object> implements RandomAccess {
+    // kinds of leaves
+    private static final int OBJECTS = 0;
+    private static final int INTS = 1;
+    private static final int DOUBLES = 2;
+
+    private static final Object[] EMPTY_NODE = new Object[32];
+    private static final PersistentList EMPTY_OBJECTS = new PersistentList(OBJECTS, 0, 5, EMPTY_NODE, new Object[0]);
+    private static final PersistentList EMPTY_INTS = new PersistentList(INTS, 0, 5, EMPTY_NODE, new int[0]);
+    private static final PersistentList EMPTY_DOUBLES = new PersistentList(DOUBLES, 0, 5, EMPTY_NODE, new double[0]);
+    static final PersistentList EMPTY = EMPTY_INTS;
+
+    private final int kind;
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    // an Object[], int[] or double[] like every leaf, depending on kind
+    private final Object tail;
+
+    private PersistentList(int kind, int size, int shift, Object[] root, Object tail) {
+        this.kind = kind;
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    static PersistentList copyOf(List<?> list) {
+        if (list instanceof PersistentList) {
+            return (PersistentList) list;
+        }
+        return of(list.toArray());
+    }
+
+    // A List of items, which must not be changed afterwards
+    static PersistentList of(Object[] items) {
+        int kind = items.length == 0 ? INTS : kindOf(items[0]);
+        for (int i = 1; i < items.length && kind != OBJECTS; i++) {
+            if (kindOf(items[i]) != kind) {
+                kind = OBJECTS;
+            }
+        }
+        return of(items, kind);
+    }
+
+    private static PersistentList of(Object[] items, int kind) {
+        PersistentList result = empty(kind);
+        int start = 0;
+        while (items.length - start > 32) {
+            result = result.withTail(leaf(kind, items, start, start + 32));
+            start += 32;
+        }
+        return result.withTail(leaf(kind, items, start, items.length));
+    }
+
+    private static int kindOf(Object item) {
+        if (item instanceof Integer) {
+            return INTS;
+        } else if (item instanceof Double) {
+            return DOUBLES;
+        }
+        return OBJECTS;
+    }
+
+    private static PersistentList empty(int kind) {
+        return kind == INTS ? EMPTY_INTS : kind == DOUBLES ? EMPTY_DOUBLES : EMPTY_OBJECTS;
+    }
+
+    private static Object leaf(int kind, Object[] items, int from, int to) {
+        if (kind == INTS) {
+            int[] leaf = new int[to - from];
+            for (int i = from; i < to; i++) {
+                leaf[i - from] = (Integer) items[i];
+            }
+            return leaf;
+        } else if (kind == DOUBLES) {
+            double[] leaf = new double[to - from];
+            for (int i = from; i < to; i++) {
+                leaf[i - from] = (Double) items[i];
+            }
+            return leaf;
+        }
+        Object[] leaf = Arrays.copyOfRange(items, from, to);
+        for (int i = 0; i < leaf.length; i++) {
+            leaf[i] = Rope.flatten(leaf[i]);
+        }
+        return leaf;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Whether every item is an Integer, which getInt then reads
+    boolean isInts() {
+        return kind == INTS;
+    }
+
+    boolean isDoubles() {
+        return kind == DOUBLES;
+    }
+
+    @Override
+    public Object get(int index) {
+        Objects.checkIndex(index, size);
+        return item(leafFor(index), index & 31);
+    }
+
+    int getInt(int index) {
+        Objects.checkIndex(index, size);
+        return ((int[]) leafFor(index))[index & 31];
+    }
+
+    double getDouble(int index) {
+        Objects.checkIndex(index, size);
+        return ((double[]) leafFor(index))[index & 31];
+    }
+
+    private Object item(Object leaf, int index) {
+        if (kind == INTS) {
+            return Operations.box(((int[]) leaf)[index]);
+        } else if (kind == DOUBLES) {
+            return ((double[]) leaf)[index];
+        }
+        return ((Object[]) leaf)[index];
+    }
+
+    PersistentList append(Object item) {
+        int itemKind = kindOf(item);
+        if (size == 0) {
+            return of(new Object[] { item }, itemKind);
+        } else if (itemKind != kind) {
+            return kind == OBJECTS ? appendObject(item) : of(toArray(), OBJECTS).appendObject(item);
+        } else if (kind == INTS) {
+            return appendInt((Integer) item);
+        } else if (kind == DOUBLES) {
+            return appendDouble((Double) item);
+        }
+        return appendObject(item);
+    }
+
+    private PersistentList appendObject(Object item) {
+        item = Rope.flatten(item);
+        if (size - tailOffset() < 32) {
+            Object[] leaf = (Object[]) tail;
+            Object[] newTail = Arrays.copyOf(leaf, leaf.length + 1);
+            newTail[leaf.length] = item;
+            return new PersistentList(kind, size + 1, shift, root, newTail);
+        }
+        return withTail(new Object[] { item });
+    }
+
+    // only for Lists of Integers
+    private PersistentList appendInt(int item) {
+        if (size - tailOffset() < 32) {
+            int[] leaf = (int[]) tail;
+            int[] newTail = Arrays.copyOf(leaf, leaf.length + 1);
+            newTail[leaf.length] = item;
+            return new PersistentList(kind, size + 1, shift, root, newTail);
+        }
+        return withTail(new int[] { item });
+    }
+
+    // only for Lists of Doubles
+    private PersistentList appendDouble(double item) {
+        if (size - tailOffset() < 32) {
+            double[] leaf = (double[]) tail;
+            double[] newTail = Arrays.copyOf(leaf, leaf.length + 1);
+            newTail[leaf.length] = item;
+            return new PersistentList(kind, size + 1, shift, root, newTail);
+        }
+        return withTail(new double[] { item });
+    }
+
+    PersistentList appendAll(List<?> items) {
+        if (items instanceof PersistentList && ((PersistentList) items).kind == kind && kind != OBJECTS) {
+            PersistentList other = (PersistentList) items;
+            PersistentList result = this;
+            for (int i = 0; i < other.size; i++) {
+                result = kind == INTS ? result.appendInt(other.getInt(i)) : result.appendDouble(other.getDouble(i));
+            }
+            return result;
+        }
+        PersistentList result = this;
+        for (Object item : items) {
+            result = result.append(item);
+        }
+        return result;
+    }
+
+    // Without the first item equal to item, or null if there is none
+    PersistentList without(Object item) {
+        if (kind != OBJECTS) {
+            // an Integer only equals an Integer and a Double a Double, so any other item is absent
+            if (kindOf(item) != kind) {
+                return null;
+            }
+            long key = key(kind, item);
+            Object items = primitives();
+            for (int i = 0; i < size; i++) {
+                if (key(items, i) == key) {
+                    Object kept = kind == INTS ? new int[size - 1] : new double[size - 1];
+                    System.arraycopy(items, 0, kept, 0, i);
+                    System.arraycopy(items, i + 1, kept, i, size - i - 1);
+                    return of(kind, kept, size - 1);
+                }
+            }
+            return null;
+        }
+        int index = indexOf(item);
+        if (index < 0) {
+            return null;
+        }
+        Object[] items = toArray();
+        System.arraycopy(items, index + 1, items, index, size - index - 1);
+        return of(Arrays.copyOf(items, size - 1));
+    }
+
+    PersistentList withoutAll(List<?> items) {
+        if (kind != OBJECTS) {
+            long[] removed = keys(items);
+            if (removed.length == 0) {
+                return this;
+            }
+            Object values = primitives();
+            int count = 0;
+            if (kind == INTS) {
+                int[] ints = (int[]) values;
+                for (int i = 0; i < size; i++) {
+                    if (Arrays.binarySearch(removed, ints[i]) < 0) {
+                        ints[count++] = ints[i];
+                    }
+                }
+            } else {
+                double[] doubles = (double[]) values;
+                for (int i = 0; i < size; i++) {
+                    if (Arrays.binarySearch(removed, Double.doubleToLongBits(doubles[i])) < 0) {
+                        doubles[count++] = doubles[i];
+                    }
+                }
+            }
+            return count == size ? this : of(kind, values, count);
+        }
+        List<Object> kept = new ArrayList<>(size);
+        for (Object item : this) {
+            if (!items.contains(item)) {
+                kept.add(item);
+            }
+        }
+        return kept.size() == size ? this : of(kept.toArray());
+    }
+
+    // The items of an INTS or DOUBLES list as one int[] or double[], copied leaf by leaf
+    private Object primitives() {
+        Object items = kind == INTS ? new int[size] : new double[size];
+        for (int i = 0; i < size; i += 32) {
+            System.arraycopy(leafFor(i), 0, items, i, Math.min(32, size - i));
+        }
+        return items;
+    }
+
+    // A list of the first length numbers of an int[] or double[], which must not be changed afterwards
+    private static PersistentList of(int kind, Object items, int length) {
+        PersistentList result = empty(kind);
+        int start = 0;
+        while (length - start > 32) {
+            result = result.withTail(slice(kind, items, start, start + 32));
+            start += 32;
+        }
+        return result.withTail(slice(kind, items, start, length));
+    }
+
+    private static Object slice(int kind, Object items, int from, int to) {
+        return kind == INTS ? Arrays.copyOfRange((int[]) items, from, to) : Arrays.copyOfRange((double[]) items, from, to);
+    }
+
+    // Numbers compare by their bits, as Integer.equals and Double.equals do
+    private static long key(int kind, Object item) {
+        return kind == INTS ? (Integer) item : Double.doubleToLongBits((Double) item);
+    }
+
+    private static long key(Object items, int index) {
+        return items instanceof int[] ? ((int[]) items)[index] : Double.doubleToLongBits(((double[]) items)[index]);
+    }
+
+    // The sorted keys of the items of this list's kind; the others never equal one of its items
+    private long[] keys(List<?> items) {
+        long[] keys = new long[items.size()];
+        int count = 0;
+        if (items instanceof PersistentList && ((PersistentList) items).kind == kind) {
+            PersistentList other = (PersistentList) items;
+            Object values = other.primitives();
+            for (int i = 0; i < other.size; i++) {
+                keys[count++] = key(values, i);
+            }
+        } else {
+            for (Object item : items) {
+                if (kindOf(item) == kind) {
+                    keys[count++] = key(kind, item);
+                }
+            }
+        }
+        keys = Arrays.copyOf(keys, count);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private int index;
+            private Object leaf;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public Object next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                if ((index & 31) == 0) {
+                    leaf = leafFor(index);
+                }
+                return item(leaf, index++ & 31);
+            }
+        };
+    }
+
+    private int tailOffset() {
+        return size < 32 ? 0 : ((size - 1) >>> 5) << 5;
+    }
+
+    private Object leafFor(int index) {
+        if (index >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 5; level -= 5) {
+            node = (Object[]) node[(index >>> level) & 31];
+        }
+        return node[(index >>> 5) & 31];
+    }
+
+    // Move the full tail into the tree and start a new one; the tail must be full or empty
+    private PersistentList withTail(Object newTail) {
+        int length = length(newTail);
+        if (size == 0) {
+            return new PersistentList(kind, length, shift, root, newTail);
+        }
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> 5) > (1 << shift)) {
+            newRoot = new Object[32];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += 5;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentList(kind, size + length, newShift, newRoot, newTail);
+    }
+
+    private static int length(Object leaf) {
+        if (leaf instanceof int[]) {
+            return ((int[]) leaf).length;
+        } else if (leaf instanceof double[]) {
+            return ((double[]) leaf).length;
+        }
+        return ((Object[]) leaf).length;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object leaf) {
+        int index = ((size - 1) >>> level) & 31;
+        Object[] node = parent.clone();
+        if (level == 5) {
+            node[index] = leaf;
+        } else {
+            Object[] child = (Object[]) parent[index];
+            node[index] = child != null ? pushTail(level - 5, child, leaf) : newPath(level - 5, leaf);
+        }
+        return node;
+    }
+
+    private static Object newPath(int level, Object leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[32];
+        node[0] = newPath(level - 5, leaf);
+        return node;
+    }
+}
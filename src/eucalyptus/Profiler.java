@@ -0,0 +1,287 @@
+package eucalyptus;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Where a program spends its time, by user Function and top-level line, enabled with --profile.
+//
+// Every profiled Context keeps a Stack of the user Functions it is running. A sampler thread
+// looks at all Stacks every interval and counts what it sees, which costs the program little
+// more than pushing and popping names; self and total times are estimated from those counts.
+// With --profile=calls every call is also counted and timed exactly, at the cost of reading
+// the clock twice per call. The samples are written as collapsed stacks ("line 3;f;g 42"),
+// the input of flame graph tools such as flamegraph.pl and speedscope.
+final class Profiler {
+    enum Mode { OFF, SAMPLED, INSTRUMENTED }
+
+    static Mode mode = Mode.OFF;
+    // milliseconds between samples
+    static int interval = 1;
+    static Path path = Paths.get("profile.folded");
+
+    private static final Set<Stack> stacks = ConcurrentHashMap.newKeySet();
+    // only the sampler thread writes these until it stopped
+    private static final Map<String, long[]> samples = new HashMap<>();
+    private static final Map<Integer, long[]> lines = new TreeMap<>();
+    private static long rounds;
+    // exact times merged from closed Stacks, with Mode.INSTRUMENTED
+    private static final Map<String, Entry> entries = new HashMap<>();
+    private static Thread sampler;
+    private static volatile boolean running;
+    private static long started;
+    private static long elapsed;
+
+    // Calls and times of one Function, in nanoseconds
+    private static final class Entry {
+        long calls;
+        long self;
+        long total;
+        // calls of it on the Stack, so recursion only adds to total once
+        int active;
+
+        void add(Entry other) {
+            calls += other.calls;
+            self += other.self;
+            total += other.total;
+        }
+    }
+
+    // The user Functions a Context is running, outermost first
+    static final class Stack {
+        private final Context context;
+        // frames inherited from the Stack this one was forked from, not timed here
+        private final int base;
+        // read by the sampler without locking, so a sample may be a call out of date
+        private String[] names;
+        private int depth;
+        // null unless Mode.INSTRUMENTED
+        private final Map<String, Entry> entries;
+        private long[] starts;
+        private long[] children;
+
+        private Stack(Context context, Stack parent) {
+            this.context = context;
+            if (parent == null) {
+                names = new String[16];
+            } else {
+                names = Arrays.copyOf(parent.names, Math.max(16, parent.depth * 2));
+                depth = parent.depth;
+            }
+            base = depth;
+            if (mode == Mode.INSTRUMENTED) {
+                entries = new HashMap<>();
+                starts = new long[names.length];
+                children = new long[names.length];
+            } else {
+                entries = null;
+            }
+        }
+
+        void enter(String name) {
+            if (depth == names.length) {
+                names = Arrays.copyOf(names, depth * 2);
+                if (entries != null) {
+                    starts = Arrays.copyOf(starts, depth * 2);
+                    children = Arrays.copyOf(children, depth * 2);
+                }
+            }
+            names[depth] = name;
+            if (entries != null) {
+                Entry entry = entry(name);
+                entry.calls++;
+                entry.active++;
+                children[depth] = 0;
+                starts[depth] = System.nanoTime();
+            }
+            depth++;
+        }
+
+        void exit() {
+            depth--;
+            if (entries != null) {
+                long time = System.nanoTime() - starts[depth];
+                Entry entry = entries.get(names[depth]);
+                entry.self += time - children[depth];
+                if (--entry.active == 0) {
+                    entry.total += time;
+                }
+                if (depth > base) {
+                    children[depth - 1] += time;
+                }
+            }
+        }
+
+        // A tail call that runs the running Function's body again in its frame
+        void again(String name) {
+            if (entries != null) {
+                entry(name).calls++;
+            }
+        }
+
+        private Entry entry(String name) {
+            Entry entry = entries.get(name);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(name, entry);
+            }
+            return entry;
+        }
+    }
+
+    // The Stack of a program's main Context, sampled until stop
+    static synchronized Stack start(Context context) {
+        samples.clear();
+        lines.clear();
+        entries.clear();
+        rounds = 0;
+        Stack stack = new Stack(context, null);
+        stacks.add(stack);
+        running = true;
+        started = System.nanoTime();
+        sampler = new Thread(Profiler::sample, "eucalyptus-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+        return stack;
+    }
+
+    // A Stack for a Context running on another thread on behalf of parent's, starting with
+    // parent's frames; null if parent is not profiled
+    static Stack fork(Context context, Stack parent) {
+        if (parent == null) {
+            return null;
+        }
+        Stack stack = new Stack(context, parent);
+        stacks.add(stack);
+        return stack;
+    }
+
+    // Stop sampling a Stack whose Context finished
+    static void close(Stack stack) {
+        if (stack == null || !stacks.remove(stack)) {
+            return;
+        }
+        if (stack.entries != null) {
+            synchronized (entries) {
+                for (Map.Entry<String, Entry> entry : stack.entries.entrySet()) {
+                    Entry total = entries.get(entry.getKey());
+                    if (total == null) {
+                        total = new Entry();
+                        entries.put(entry.getKey(), total);
+                    }
+                    total.add(entry.getValue());
+                }
+            }
+        }
+    }
+
+    static synchronized void stop(Stack stack) {
+        close(stack);
+        running = false;
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        elapsed = System.nanoTime() - started;
+    }
+
+    private static void sample() {
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            rounds++;
+            for (Stack stack : stacks) {
+                record(stack);
+            }
+        }
+    }
+
+    private static void record(Stack stack) {
+        String[] names = stack.names;
+        int depth = Math.min(stack.depth, names.length);
+        int line = stack.context.line;
+        StringBuilder key = new StringBuilder("line ").append(line);
+        for (int i = 0; i < depth; i++) {
+            if (names[i] != null) {
+                key.append(';').append(names[i]);
+            }
+        }
+        samples.computeIfAbsent(key.toString(), k -> new long[1])[0]++;
+        lines.computeIfAbsent(line, k -> new long[1])[0]++;
+    }
+
+    // Print the hottest Functions and lines and write the collapsed stacks to path
+    static synchronized void report(PrintStream out) {
+        // estimated milliseconds each sample stands for
+        double sampleTime = rounds == 0 ? 0 : elapsed / 1e6 / rounds;
+        Map<String, long[]> functions = new HashMap<>();
+        long total = 0;
+        for (Map.Entry<String, long[]> sample : samples.entrySet()) {
+            long count = sample.getValue()[0];
+            total += count;
+            List<String> frames = Arrays.asList(sample.getKey().split(";"));
+            if (frames.size() > 1) {
+                functions.computeIfAbsent(frames.get(frames.size() - 1), k -> new long[2])[0] += count;
+                for (String name : new HashSet<>(frames.subList(1, frames.size()))) {
+                    functions.computeIfAbsent(name, k -> new long[2])[1] += count;
+                }
+            }
+        }
+
+        out.printf("Profile: %d samples in %.1f ms%n", total, elapsed / 1e6);
+        out.printf("%-24s %12s %12s %12s%n", "Function", "Calls", "Self ms", "Total ms");
+        Set<String> names = new HashSet<>(functions.keySet());
+        names.addAll(entries.keySet());
+        List<String> hottest = new ArrayList<>(names);
+        if (mode == Mode.INSTRUMENTED) {
+            hottest.sort((a, b) -> Long.compare(entries.getOrDefault(b, new Entry()).self,
+                    entries.getOrDefault(a, new Entry()).self));
+        } else {
+            hottest.sort((a, b) -> Long.compare(functions.get(b)[0], functions.get(a)[0]));
+        }
+        for (String name : hottest) {
+            if (mode == Mode.INSTRUMENTED) {
+                Entry entry = entries.getOrDefault(name, new Entry());
+                out.printf("%-24s %12d %12.1f %12.1f%n", name, entry.calls, entry.self / 1e6, entry.total / 1e6);
+            } else {
+                long[] counts = functions.get(name);
+                out.printf("%-24s %12s %12.1f %12.1f%n", name, "-", counts[0] * sampleTime, counts[1] * sampleTime);
+            }
+        }
+
+        List<Map.Entry<Integer, long[]>> hotLines = new ArrayList<>(lines.entrySet());
+        hotLines.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        out.printf("%-24s %12s %12s%n", "Line", "Samples", "%");
+        for (Map.Entry<Integer, long[]> line : hotLines.subList(0, Math.min(10, hotLines.size()))) {
+            long count = line.getValue()[0];
+            out.printf("%-24d %12d %11.1f%%%n", line.getKey(), count, 100.0 * count / total);
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            for (Map.Entry<String, long[]> sample : new TreeMap<>(samples).entrySet()) {
+                writer.write(sample.getKey() + " " + sample.getValue()[0]);
+                writer.newLine();
+            }
+            out.println("Collapsed stacks written to " + path);
+        } catch (IOException e) {
+            out.println("Error writing profile: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package eucalyptus;
+
+// String value built by add, so that appending to a long String does not copy it.
+//
+// A Rope is a prefix of a StringBuilder it may share with the Ropes it was appended from.
+// Appending to the longest of them appends to the builder in place; appending to any other
+// copies its prefix into a new builder first, so every Rope keeps its own value. The
+// characters are only copied out into a String when something needs them (print, eq, lt,
+// sub, Dict keys, Lists), and len never needs them.
+final class Rope implements CharSequence {
+    // results of add shorter than this are plain Strings
+    static final int MIN_LENGTH = 256;
+
+    // guards its own length
+    private final StringBuilder text;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder text, int length) {
+        this.text = text;
+        this.length = length;
+    }
+
+    // first followed by second, both Strings or Ropes
+    static Object concat(CharSequence first, CharSequence second) {
+        int length = first.length() + second.length();
+        if (length < MIN_LENGTH) {
+            return first.toString() + second;
+        } else if (first instanceof Rope) {
+            return ((Rope) first).append(second.toString());
+        }
+        StringBuilder text = new StringBuilder(length * 2).append(first).append(second.toString());
+        return new Rope(text, length);
+    }
+
+    private Rope append(String next) {
+        synchronized (text) {
+            if (text.length() == length) {
+                text.append(next);
+                return new Rope(text, length + next.length());
+            }
+        }
+        StringBuilder copy = new StringBuilder((length + next.length()) * 2).append(toString()).append(next);
+        return new Rope(copy, copy.length());
+    }
+
+    // value as a String, unless it is a Rope that is not needed as one
+    static Object flatten(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    @Override
+    public String toString() {
+        String string = flat;
+        if (string == null) {
+            synchronized (text) {
+                string = text.substring(0, length);
+            }
+            flat = string;
+        }
+        return string;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    // equal to Ropes with the same characters, like Strings are to each other
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Rope && ((Rope) other).length == length && other.toString().equals(toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
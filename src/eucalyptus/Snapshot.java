@@ -0,0 +1,231 @@
+package eucalyptus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Global variables of a finished program (usually a prelude of Function definitions), saved
+// so later runs can start with them already defined instead of running the prelude again.
+//
+// Layout: magic "EUCS", version byte, binding count, then each binding's name and value as a
+// tagged tree. A Function is stored as its name, its parameter count and the defFunction call
+// that defines it, in the .eucb encoding of BinaryProgram. Restoring one only decodes and
+// compiles that call the first time the Function is used, so unused definitions cost nothing
+// but reading them; the parameter count lets --check verify calls of it before that.
+final class Snapshot {
+    public static final String EXTENSION = ".eucs";
+    // snapshot to restore before running a program, set with --snapshot
+    static Path path;
+
+    private static final int MAGIC = 0x45554353;
+    private static final int VERSION = 2;
+
+    private static final byte TAG_NULL = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_FALSE = 3;
+    private static final byte TAG_INTEGER = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_STRING = 6;
+    private static final byte TAG_LIST = 7;
+    private static final byte TAG_DICT = 8;
+    // Dict literals keep their values as Literals
+    private static final byte TAG_LITERAL = 9;
+    private static final byte TAG_FUNCTION = 10;
+
+    // Turns a stored defFunction call back into a Function
+    interface Definer {
+        Function define(FunctionCall definition);
+    }
+
+    static Path path(Path prelude) {
+        String name = prelude.getFileName().toString();
+        if (name.endsWith(".euc")) {
+            name = name.substring(0, name.length() - ".euc".length());
+        }
+        return prelude.resolveSibling(name + EXTENSION);
+    }
+
+    static void write(Map<String, Object> globals, Path target) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(globals.size());
+            for (Map.Entry<String, Object> binding : globals.entrySet()) {
+                writeString(out, binding.getKey());
+                writeValue(out, binding.getValue());
+            }
+        }
+    }
+
+    // The bindings of a snapshot in the order they were saved
+    static Map<String, Object> read(Path source, Definer definer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(source)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException(source + " is not a snapshot");
+            }
+            int count = readLength(in);
+            Map<String, Object> globals = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                globals.put(name, readValue(in, definer));
+            }
+            return globals;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        value = Rope.flatten(value);
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            out.writeByte(TAG_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            Map<String, Object> dict = (Map<String, Object>) value;
+            out.writeByte(TAG_DICT);
+            out.writeInt(dict.size());
+            for (Map.Entry<String, Object> entry : dict.entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof Literal) {
+            out.writeByte(TAG_LITERAL);
+            writeValue(out, ((Literal) value).getValue());
+        } else if (value instanceof Function) {
+            Function function = (Function) value;
+            List<Object> arguments = new ArrayList<>();
+            arguments.add(new Variable(function.getName()));
+            arguments.add(new Literal(new ArrayList<Object>(function.getParameters())));
+            arguments.add(new Literal(new ArrayList<Object>(function.getStatements())));
+            byte[] definition = BinaryProgram.encode(List.of(new FunctionCall("defFunction", arguments)), null);
+            out.writeByte(TAG_FUNCTION);
+            writeString(out, function.getName());
+            out.writeInt(function.getArity());
+            out.writeInt(definition.length);
+            out.write(definition);
+        } else {
+            throw new IOException("Cannot save a value of type " + value.getClass().getSimpleName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in, Definer definer) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return true;
+            case TAG_FALSE:
+                return false;
+            case TAG_INTEGER:
+                return Operations.box(in.readInt());
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_STRING:
+                return readString(in);
+            case TAG_LIST: {
+                int count = readLength(in);
+                List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue(in, definer));
+                }
+                return PersistentList.copyOf(list);
+            }
+            case TAG_DICT: {
+                int count = readLength(in);
+                Map<String, Object> dict = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = readString(in);
+                    dict.put(key, readValue(in, definer));
+                }
+                return dict;
+            }
+            case TAG_LITERAL:
+                return new Literal(readValue(in, definer));
+            case TAG_FUNCTION: {
+                String name = readString(in);
+                int arity = in.readInt();
+                byte[] definition = new byte[readLength(in)];
+                in.readFully(definition);
+                return Function.restored(name, arity, new Definition(name, definition, definer));
+            }
+            default:
+                throw new IOException("Unknown tag " + tag + " in snapshot");
+        }
+    }
+
+    // A stored Function definition, decoded and compiled when Function first needs it. A
+    // class rather than a lambda, since bootstrapping the first lambda costs more at startup
+    // than reading the whole snapshot.
+    private static final class Definition implements Supplier<Function> {
+        private final String name;
+        private final byte[] definition;
+        private final Definer definer;
+
+        Definition(String name, byte[] definition, Definer definer) {
+            this.name = name;
+            this.definition = definition;
+            this.definer = definer;
+        }
+
+        @Override
+        public Function get() {
+            List<FunctionCall> program = BinaryProgram.decode(ByteBuffer.wrap(definition), null);
+            if (program == null || program.size() != 1) {
+                throw new RuntimeException("Corrupt definition of Function '" + name + "' in snapshot");
+            }
+            return definer.define(program.get(0));
+        }
+    }
+
+    // writeUTF is limited to 64KB, Strings in a program are not
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[readLength(in)];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    // A count or length to allocate for. Every item takes at least a byte, so one larger than
+    // the rest of the file can only come from a corrupt or truncated snapshot.
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("length " + length + " exceeds the rest of the snapshot");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,105 @@
+package eucalyptus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A Function call running on its own thread, started by spawn and joined by await.
+//
+// The call runs in a copy of the spawning Environment, so it sees the bindings from the
+// moment it was spawned and nothing it binds is visible outside it. Threads are virtual when
+// the JVM has them (Java 21 and later), so thousands of tasks blocked on I/O are cheap;
+// older JVMs fall back to a pool of daemon threads.
+final class Task {
+    private static final ExecutorService executor = executor();
+
+    private final String name;
+    private final CompletableFuture<Object> result;
+
+    private Task(String name, CompletableFuture<Object> result) {
+        this.name = name;
+        this.result = result;
+    }
+
+    static Task spawn(Function function, List<Object> arguments, Context parent) {
+        String name = function.getName();
+        String[] parameters = function.getParameterNames();
+        if (parameters == null) {
+            throw new RuntimeException("Parameters of Function '" + name + "' must be Variables");
+        }
+        if (parameters.length != arguments.size()) {
+            throw new RuntimeException("Function '" + name + "' expects " + parameters.length
+                    + " parameters, but got " + arguments.size());
+        }
+        Environment env = new Environment(parent.env);
+        Context context = new Context(env);
+        context.line = parent.line;
+        context.trace = new ArrayList<>();
+        context.stack = Profiler.fork(context, parent.stack);
+        Appendable output = Operations.output.get();
+        return new Task(name, CompletableFuture.supplyAsync(() -> {
+            Operations.output.set(output);
+            try {
+                env.enterScope();
+                int[] slots = function.getParameterSlots();
+                for (int i = 0; i < parameters.length; i++) {
+                    env.setVariable(slots[i], parameters[i], arguments.get(i));
+                }
+                return Node.Call.finish(context, function, name);
+            } catch (RuntimeException e) {
+                throw new RuntimeException(describe(e, context.trace), e);
+            } finally {
+                Operations.output.remove();
+                Profiler.close(context.stack);
+            }
+        }, executor));
+    }
+
+    // The value the Function returned, or the error it failed with
+    Object await() {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw new RuntimeException("Task '" + name + "' failed: " + cause.getMessage(), cause.getCause());
+            }
+            throw new RuntimeException("Task '" + name + "' failed: " + cause, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for task '" + name + "'");
+        }
+    }
+
+    // The message of an error with the Functions it passed through, innermost first
+    private static String describe(RuntimeException error, List<String> trace) {
+        StringBuilder message = new StringBuilder(String.valueOf(error.getMessage()));
+        for (int i = 0; i < trace.size(); i++) {
+            message.append(i == 0 ? " (in function '" : ", called from '").append(trace.get(i)).append('\'');
+        }
+        if (!trace.isEmpty()) {
+            message.append(')');
+        }
+        return message.toString();
+    }
+
+    private static ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "eucalyptus-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Task " + name;
+    }
+}
@@ -1,13 +1,18 @@
 package eucalyptus;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.io.File;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 class TestHarness {
     public static final PrintStream out = System.out;
@@ -24,6 +29,19 @@ class TestHarness {
     private static final String FAILED = RED + "FAILED" + RESET;
     private static final String PASSED = GREEN + "PASSED" + RESET;
 
+    // Perf mode runs every test warmup times, then runs times, and compares the median time
+    // and median allocation with the baseline. A test fails if one of them grew by more than
+    // threshold percent of its baseline value and by more than its noise floor. p95 time is
+    // only reported: a few runs slowed by the JIT or GC decide it, so it fails at random.
+    static int warmup = 20;
+    static int runs = 50;
+    static double threshold = 25;
+    // time difference in nanoseconds below which scheduling decides more than the test
+    static long timeFloor = 50_000;
+    static final Path BASELINE = Paths.get("../output/perf_baseline.txt");
+    // allocation counts whole TLAB refills, so it varies by about this much between runs
+    private static final long ALLOCATION_FLOOR = 4 * 1024;
+
     public TestHarness(FileRunner fileRunner) {
         this.fileRunner = fileRunner;
     }
@@ -50,6 +68,17 @@ class TestHarness {
     }
 
     private void runTests() {
+        List<File> testList = findTests();
+        if (testList != null) {
+            System.out.println("Running " + testList.size() + " tests...\n");
+            for (File file : testList) {
+                runTest(file);
+            }
+        }
+    }
+
+    // The .euc files of every test directory, or null if there are none
+    private List<File> findTests() {
         try {
             checkDirectory("../tests");
             checkDirectory("../output");
@@ -57,7 +86,7 @@ class TestHarness {
             checkDirectory("../output/expected");
         } catch (Exception e) {
             errors++;
-            return;
+            return null;
         }
 
         File testDirectory = new File("../tests");
@@ -69,7 +98,7 @@ class TestHarness {
                 if (!file.isDirectory()) {
                     continue;
                 }
-                File[] subFiles = file.listFiles();
+                File[] subFiles = file.listFiles((directory, name) -> name.endsWith(".euc"));
                 if (subFiles != null && subFiles.length > 0) {
                     String outputFilePath = "../output/actual/" + file.getName();
                     File outputDirectory = new File(outputFilePath);
@@ -82,15 +111,11 @@ class TestHarness {
                     errors++;
                 }
             }
-
-            System.out.println("Running " + testList.size() + " tests...\n");
-            for (File file : testList) {
-                runTest(file);
-            }
-        } else {
-            System.out.println("Error: the tests directory is empty");
-            errors++;
+            return testList;
         }
+        System.out.println("Error: the tests directory is empty");
+        errors++;
+        return null;
     }
 
     private void checkDirectory(String path) throws Exception {
@@ -165,6 +190,132 @@ class TestHarness {
         }
     }
 
+    // Time every test against the baseline, or record a new baseline if save is set. Returns
+    // false if a test regressed.
+    public boolean runPerformance(boolean save) {
+        List<File> testList = findTests();
+        if (testList == null) {
+            return false;
+        }
+        Map<String, long[]> baseline = new TreeMap<>();
+        if (!save) {
+            try {
+                baseline = readBaseline();
+            } catch (IOException e) {
+                System.out.println("Error: no baseline in " + BASELINE + ", run 'perf save' to record one");
+                return false;
+            }
+        }
+        System.out.println("Timing " + testList.size() + " tests, " + warmup + " warmup and " + runs
+                + " measured runs each...\n");
+        Map<String, long[]> results = new TreeMap<>();
+        for (File file : testList) {
+            String testName = file.getParentFile().getName() + "_" + file.getName().replace(".euc", "");
+            long[] result = measure(file);
+            long[] base = baseline.get(testName);
+            if (base != null && regressed(result, base)) {
+                // one slow measurement is more often the machine than the test, so confirm it
+                long[] again = measure(file);
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = Math.min(result[i], again[i]);
+                }
+            }
+            results.put(testName, result);
+            String timing = String.format("%.2f ms median, %.2f ms p95, %d KB", result[0] / 1e6, result[1] / 1e6,
+                    result[2] / 1024);
+            if (save) {
+                printResult(testName, timing);
+            } else if (base == null) {
+                printResult(testName, timing + ", not in baseline");
+            } else {
+                String comparison = String.format("%s (baseline %.2f ms, %.2f ms, %d KB)", timing,
+                        base[0] / 1e6, base[1] / 1e6, base[2] / 1024);
+                if (regressed(result, base)) {
+                    logError(testName, comparison);
+                    fails++;
+                } else {
+                    printResult(testName, PASSED + " " + comparison);
+                    successes++;
+                }
+            }
+        }
+
+        if (save) {
+            try {
+                writeBaseline(results);
+                System.out.println("\nSaved the timings of " + results.size() + " tests to " + BASELINE);
+                return true;
+            } catch (IOException e) {
+                System.out.println("Error writing baseline: " + e.getMessage());
+                return false;
+            }
+        }
+        String testResult = (fails > 0 || errors > 0 ? RED + "FAILURE" : GREEN + "SUCCESS") + RESET;
+        System.out.println("\nPerf completed with result: " + testResult);
+        System.out.println("Regressions: " + fails + " (threshold " + threshold + "%)");
+        return fails == 0 && errors == 0;
+    }
+
+    private static boolean regressed(long[] result, long[] base) {
+        return regressed(result[0], base[0], timeFloor) || regressed(result[2], base[2], ALLOCATION_FLOOR);
+    }
+
+    private static boolean regressed(long value, long base, long floor) {
+        return value - base > floor && value > base * (1 + threshold / 100);
+    }
+
+    // Median time, 95th percentile time and median bytes allocated by this thread of the
+    // measured runs of a test, with its output discarded
+    private long[] measure(File file) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long[] times = new long[runs];
+        long[] allocations = new long[runs];
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < warmup; i++) {
+                fileRunner.run(file.getPath());
+            }
+            for (int i = 0; i < runs; i++) {
+                long allocated = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                fileRunner.run(file.getPath());
+                times[i] = System.nanoTime() - start;
+                allocations[i] = threads.getThreadAllocatedBytes(thread) - allocated;
+            }
+        } finally {
+            System.setOut(out);
+        }
+        Arrays.sort(times);
+        Arrays.sort(allocations);
+        return new long[] { times[runs / 2], times[(int) Math.ceil(runs * 0.95) - 1], allocations[runs / 2] };
+    }
+
+    // Lines of "test median_ns p95_ns allocated_bytes", after comments starting with #
+    private static Map<String, long[]> readBaseline() throws IOException {
+        Map<String, long[]> baseline = new TreeMap<>();
+        for (String line : Files.readAllLines(BASELINE)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.trim().split("\\s+");
+            baseline.put(fields[0], new long[] { Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Long.parseLong(fields[3]) });
+        }
+        return baseline;
+    }
+
+    private static void writeBaseline(Map<String, long[]> results) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Written by 'make perf-save': test, median and p95 time in ns, median bytes allocated");
+        for (Map.Entry<String, long[]> result : results.entrySet()) {
+            long[] values = result.getValue();
+            lines.add(result.getKey() + " " + values[0] + " " + values[1] + " " + values[2]);
+        }
+        Files.write(BASELINE, lines);
+    }
+
     private void printResult(String testName, String result) {
         System.out.println("Test '" + testName + "' ... " + result);
     }
@@ -0,0 +1,320 @@
+package eucalyptus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static eucalyptus.BytecodeCompiler.*;
+
+// Dispatch loop for code produced by BytecodeCompiler. User function calls push a Frame
+// instead of recursing through Java, so call depth is bounded by the heap. A Frame's
+// registers hold temporaries; variables live in the Environment, see BytecodeCompiler.
+class VirtualMachine {
+    private static final class Frame {
+        final Chunk chunk;
+        final Object[] registers;
+        final Frame caller;
+        int resumeAt;
+        int callSite;
+        int returnRegister;
+        // null unless a recording wants function calls
+        Events.Call event;
+
+        Frame(Chunk chunk, Frame caller) {
+            this.chunk = chunk;
+            this.registers = new Object[chunk.registerCount];
+            this.caller = caller;
+        }
+    }
+
+    private final Context context;
+    private int line;
+
+    VirtualMachine(Context context) {
+        this.context = context;
+    }
+
+    // Top-level statement that was running when run() last threw
+    int getLine() {
+        return line;
+    }
+
+    @SuppressWarnings("unchecked")
+    void run(Chunk program) {
+        Environment env = context.env;
+        Frame frame = new Frame(program, null);
+        int[] code = program.code;
+        Object[] constants = program.constants;
+        int[] slots = program.slots;
+        Object[] registers = frame.registers;
+        int pc = 0;
+        int start = 0;
+
+        try {
+            while (true) {
+                start = pc;
+                switch (code[pc]) {
+                    case CONST:
+                        registers[code[pc + 1]] = constants[code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case LOAD: {
+                        Object value = env.getVariable(slots[code[pc + 2]]);
+                        if (value == null) {
+                            throw new RuntimeException("Variable '" + constants[code[pc + 2]] + "' is not defined");
+                        }
+                        registers[code[pc + 1]] = value;
+                        pc += 3;
+                        break;
+                    }
+                    case ADD:
+                        registers[code[pc + 1]] = Operations.add(registers[code[pc + 2]], registers[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case ADD_CONST:
+                        registers[code[pc + 1]] = Operations.add(registers[code[pc + 2]], constants[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case SUB:
+                        registers[code[pc + 1]] = Operations.sub(registers[code[pc + 2]], registers[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case SUB_CONST:
+                        registers[code[pc + 1]] = Operations.sub(registers[code[pc + 2]], constants[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case MULT:
+                        registers[code[pc + 1]] = Operations.mult(registers[code[pc + 2]], registers[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case LT:
+                        registers[code[pc + 1]] = Operations.lessThan(registers[code[pc + 2]],
+                                registers[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case EQ:
+                        registers[code[pc + 1]] = Operations.eq(registers[code[pc + 2]], registers[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case JUMP_UNLESS_LT:
+                        pc = Operations.lessThan(registers[code[pc + 1]], registers[code[pc + 2]]) ? pc + 4
+                                : code[pc + 3];
+                        break;
+                    case JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case JUMP_IF_FALSY:
+                        pc = Operations.isTruthy(registers[code[pc + 1]]) ? pc + 3 : code[pc + 2];
+                        break;
+                    case JUMP_UNLESS_TRUE:
+                        pc = (boolean) registers[code[pc + 1]] ? pc + 3 : code[pc + 2];
+                        break;
+                    case JUMP_IF_NOT_NULL:
+                        pc = registers[code[pc + 1]] != null ? code[pc + 2] : pc + 3;
+                        break;
+                    case JUMP_IF_DICT_KEY:
+                        pc = registers[code[pc + 1]] instanceof Map && Operations.isString(registers[code[pc + 2]])
+                                ? code[pc + 3]
+                                : pc + 4;
+                        break;
+                    case PUT:
+                        registers[code[pc + 1]] = Operations.put(registers[code[pc + 2]],
+                                registers[code[pc + 3]].toString(), registers[code[pc + 4]]);
+                        pc += 5;
+                        break;
+                    case LIST_NEW:
+                        registers[code[pc + 1]] = new ArrayList<>();
+                        pc += 2;
+                        break;
+                    case LIST_ADD: {
+                        Object item = registers[code[pc + 2]];
+                        if (item != null) {
+                            ((List<Object>) registers[code[pc + 1]]).add(item);
+                        }
+                        pc += 3;
+                        break;
+                    }
+                    case LIST_END:
+                        registers[code[pc + 1]] = PersistentList.copyOf((List<Object>) registers[code[pc + 1]]);
+                        pc += 2;
+                        break;
+                    case LEN:
+                        registers[code[pc + 1]] = Operations.len(registers[code[pc + 2]]);
+                        pc += 3;
+                        break;
+                    case GET_BEGIN:
+                        registers[code[pc + 1]] = Node.Get.container(context, slots[code[pc + 2]],
+                                (String) constants[code[pc + 2]]);
+                        pc += 3;
+                        break;
+                    case GET:
+                        registers[code[pc + 1]] = Node.Get.lookup(registers[code[pc + 2]], registers[code[pc + 3]],
+                                (String) constants[code[pc + 4]]);
+                        pc += 5;
+                        break;
+                    case PRINT: {
+                        Object value = registers[code[pc + 1]];
+                        if (value != null) {
+                            Operations.print(value);
+                        }
+                        pc += 2;
+                        break;
+                    }
+                    case CHECK_CONSTANT:
+                        if (env.hasVariable(slots[code[pc + 1]])) {
+                            throw new RuntimeException(
+                                    "Cannot reassign constant Variable '" + constants[code[pc + 1]] + "'");
+                        }
+                        pc += 2;
+                        break;
+                    case DEF:
+                        env.setVariable(slots[code[pc + 1]], (String) constants[code[pc + 1]],
+                                registers[code[pc + 2]]);
+                        pc += 3;
+                        break;
+                    case DEF_FUNCTION: {
+                        Template template = (Template) constants[code[pc + 1]];
+                        Node.DefFunction definition = template.definition;
+                        env.setVariable(definition.slot, definition.name,
+                                new Function(definition.name, definition.parameters, definition.statements,
+                                        definition.parameterNames, definition.parameterSlots, definition.body,
+                                        template.chunk));
+                        pc += 2;
+                        break;
+                    }
+                    case INC:
+                        env.setVariable(slots[code[pc + 1]], (String) constants[code[pc + 1]],
+                                (int) registers[code[pc + 2]] + (int) registers[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case ENTER_SCOPE:
+                        env.enterScope();
+                        pc += 1;
+                        break;
+                    case EXIT_SCOPE:
+                        env.exitScope();
+                        pc += 1;
+                        break;
+                    case LOAD_LIST: {
+                        Object value = env.getVariable(slots[code[pc + 2]]);
+                        if (value == null) {
+                            throw new RuntimeException("Variable '" + constants[code[pc + 2]] + "' is not defined");
+                        }
+                        if (!(value instanceof List)) {
+                            throw new RuntimeException(Node.ForEach.LIST_ERROR_MESSAGE);
+                        }
+                        registers[code[pc + 1]] = value;
+                        pc += 3;
+                        break;
+                    }
+                    case ITERATE:
+                        registers[code[pc + 1]] = ((List<Object>) registers[code[pc + 2]]).iterator();
+                        pc += 3;
+                        break;
+                    case NEXT: {
+                        Iterator<Object> iterator = (Iterator<Object>) registers[code[pc + 2]];
+                        if (iterator.hasNext()) {
+                            registers[code[pc + 1]] = iterator.next();
+                            pc += 4;
+                        } else {
+                            pc = code[pc + 3];
+                        }
+                        break;
+                    }
+                    case FAIL:
+                        throw new RuntimeException((String) constants[code[pc + 1]]);
+                    case CALL_BEGIN:
+                        registers[code[pc + 1]] = ((Node.Call) constants[code[pc + 2]]).begin(context);
+                        pc += 3;
+                        break;
+                    case BIND: {
+                        Function function = (Function) registers[code[pc + 1]];
+                        int index = code[pc + 2];
+                        env.setVariable(function.getParameterSlots()[index], function.getParameterNames()[index],
+                                registers[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    }
+                    case CALL: {
+                        Function function = (Function) registers[code[pc + 2]];
+                        frame.returnRegister = code[pc + 1];
+                        frame.callSite = start;
+                        frame.resumeAt = pc + 4;
+                        context.currentFunction = (String) constants[code[pc + 3]];
+                        if (context.stack != null) {
+                            context.stack.enter(context.currentFunction);
+                        }
+                        frame = new Frame(function.getChunk(), frame);
+                        if (Events.calls()) {
+                            frame.event = Events.call();
+                            frame.event.function = context.currentFunction;
+                        }
+                        code = frame.chunk.code;
+                        constants = frame.chunk.constants;
+                        slots = frame.chunk.slots;
+                        registers = frame.registers;
+                        pc = 0;
+                        break;
+                    }
+                    case RETURN_IF_NOT_NULL: {
+                        Object value = registers[code[pc + 1]];
+                        if (value == null) {
+                            pc += 2;
+                            break;
+                        }
+                        frame = returnFrom(frame, value);
+                        code = frame.chunk.code;
+                        constants = frame.chunk.constants;
+                        slots = frame.chunk.slots;
+                        registers = frame.registers;
+                        pc = frame.resumeAt;
+                        break;
+                    }
+                    case RETURN:
+                        frame = returnFrom(frame, registers[code[pc + 1]]);
+                        code = frame.chunk.code;
+                        constants = frame.chunk.constants;
+                        slots = frame.chunk.slots;
+                        registers = frame.registers;
+                        pc = frame.resumeAt;
+                        break;
+                    case LINE:
+                        context.line = code[pc + 1];
+                        pc += 2;
+                        break;
+                    case EXECUTE:
+                        registers[code[pc + 1]] = ((Node) constants[code[pc + 2]]).execute(context);
+                        pc += 3;
+                        break;
+                    case HALT:
+                        return;
+                    default:
+                        throw new IllegalStateException("Unknown opcode " + code[pc]);
+                }
+            }
+        } catch (RuntimeException e) {
+            while (frame.caller != null) {
+                frame = frame.caller;
+                start = frame.callSite;
+            }
+            line = program.lineAt(start);
+            throw e;
+        }
+    }
+
+    // Leave frame's call, giving value to its caller, and return the caller
+    private Frame returnFrom(Frame frame, Object value) {
+        if (frame.event != null) {
+            frame.event.record(frame.event.function, context);
+        }
+        context.currentFunction = null;
+        if (context.stack != null) {
+            context.stack.exit();
+        }
+        context.env.exitScope();
+        Frame caller = frame.caller;
+        caller.registers[caller.returnRegister] = value;
+        return caller;
+    }
+}
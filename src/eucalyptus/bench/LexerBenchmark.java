@@ -0,0 +1,158 @@
+package eucalyptus.bench;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import eucalyptus.Lexer;
+import eucalyptus.Parser;
+
+// Compares the char[] lexer against the original LinkedList<String> tokenizer on generated input,
+// along with sequential and parallel parsing of the same input
+public class LexerBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 10_000, 100_000, 500_000 };
+        if (args.length > 0) {
+            sizes = new int[] { Integer.parseInt(args[0]) };
+        }
+        for (int statements : sizes) {
+            String source = generate(statements);
+            char[] chars = source.toCharArray();
+            System.out.println("Input: " + statements + " statements, " + chars.length / 1024 + " KiB");
+
+            int legacyTokens = legacyTokenize(source).size();
+            int lexerTokens = new Lexer(chars).tokenize().count();
+            if (legacyTokens != lexerTokens) {
+                throw new IllegalStateException("Token count mismatch: " + legacyTokens + " vs " + lexerTokens);
+            }
+
+            double legacy = measure(() -> legacyTokenize(source).size());
+            double lexer = measure(() -> new Lexer(chars).tokenize().count());
+            double parse = measure(() -> new Parser(chars).parse().size());
+            double parallelParse = measure(() -> new Parser(chars).parseParallel().size());
+
+            report("legacy tokenize", lexerTokens, legacy);
+            report("lexer tokenize", lexerTokens, lexer);
+            report("lexer + parse", lexerTokens, parse);
+            report("parallel parse", lexerTokens, parallelParse);
+            System.out.printf("  speedup: %.1fx%n%n", legacy / lexer);
+        }
+    }
+
+    private interface Task {
+        int run() throws Exception;
+    }
+
+    // Returns the median duration of a round in seconds
+    private static double measure(Task task) throws Exception {
+        int sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += task.run();
+        }
+        long[] durations = new long[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += task.run();
+            durations[i] = System.nanoTime() - start;
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        java.util.Arrays.sort(durations);
+        return durations[MEASURED_ROUNDS / 2] / 1_000_000_000.0;
+    }
+
+    private static void report(String label, int tokens, double seconds) {
+        System.out.printf("  %-16s %8.2f ms  %12.0f tokens/sec%n", label, seconds * 1000, tokens / seconds);
+    }
+
+    // also the input of the JMH parser benchmarks
+    public static String generate(int statements) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            switch (i % 4) {
+                case 0:
+                    source.append("def(value_").append(i).append(", ").append(i).append(")\n");
+                    break;
+                case 1:
+                    source.append("def(RECORD_").append(i).append(", {'name': \"item ").append(i)
+                            .append("\", 'weight': ").append(i).append(".5, 'tags': [1, 2, 3]})\n");
+                    break;
+                case 2:
+                    source.append("print(add(value_").append(i - 2).append(", mult(2, 3.25), -7))\n");
+                    break;
+                default:
+                    source.append("if(lt(value_").append(i - 3).append(", 10), [print('small')], print(true))\n");
+                    break;
+            }
+        }
+        return source.toString();
+    }
+
+    // The tokenizer Parser used before the char[] lexer, kept here as the baseline
+    static Queue<String> legacyTokenize(String input) {
+        Queue<String> tokens = new LinkedList<>();
+        StringBuilder token = new StringBuilder();
+        boolean inString = false;
+        char quote = 0;
+
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+
+            if (c == '"' || c == '\'') {
+                if (inString) {
+                    token.append(c);
+                    if (c == quote) {
+                        tokens.add(token.toString());
+                        token.setLength(0);
+                        inString = false;
+                        quote = 0;
+                    }
+                } else {
+                    if (token.length() > 0) {
+                        tokens.add(token.toString());
+                        token.setLength(0);
+                    }
+                    token.append(c);
+                    inString = true;
+                    quote = c;
+                }
+                continue;
+            }
+
+            if (inString) {
+                token.append(c);
+                continue;
+            }
+
+            List<Character> specialChars = List.of('(', ')', ',', '[', ']', ':', '{', '}');
+            if (specialChars.contains(c)) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+                tokens.add(String.valueOf(c));
+            } else if (Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+            } else {
+                token.append(c);
+            }
+        }
+
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+
+        if (inString) {
+            throw new RuntimeException("Unterminated string literal; expected closing " + quote);
+        }
+
+        return tokens;
+    }
+}